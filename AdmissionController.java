@@ -0,0 +1,155 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The AdmissionController class limits the work the server accepts, so that a few huge requests cannot
+ * take the CPU (or the memory) away from every other client. The cost of a computation request is
+ * estimated as the number of tuples times the number of expression nodes evaluated for each of them;
+ * requests above the per-request budget are rejected, and requests that would push the total cost of
+ * the requests in flight above the global budget are rejected or queued, according to the policy.
+ * With the DOWNGRADE policy, an AVG request over either budget is estimated from a sample instead, as
+ * an AAVG request (see {@link ComputationEngine#estimateAverage}), at the cost of the sample.
+ *
+ * A request is always admitted when nothing else is in flight, so a request within the per-request
+ * budget cannot wait forever.
+ */
+public class AdmissionController {
+
+    // What happens to a request exceeding the global budget
+    public enum Policy {
+        REJECT,   // Answered with an error at once
+        QUEUE,    // Waits until enough requests in flight complete, up to a timeout
+        DOWNGRADE // Computed more cheaply if possible (see admitOrDowngrade()), queued otherwise
+    }
+
+    private static final long CANCELLATION_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final long maxRequestCost;  // Budget of a single request
+    private final long maxInFlightCost;  // Budget of all the requests in flight
+    private final Policy policy;
+    private final long queueTimeoutNanos;
+    private long inFlightCost = 0;       // Cost of the admitted requests, guarded by this
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder downgraded = new LongAdder();
+
+    public AdmissionController(long maxRequestCost, long maxInFlightCost, Policy policy, long queueTimeoutMillis) {
+        this.maxRequestCost = maxRequestCost;
+        this.maxInFlightCost = maxInFlightCost;
+        this.policy = policy;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    }
+
+    /**
+     * Estimates the cost of evaluating expressions over tuples, saturating instead of overflowing.
+     *
+     * @param tuples The number of tuples.
+     * @param nodes  The number of expression nodes evaluated for each tuple.
+     * @return The estimated cost.
+     */
+    public static long estimateCost(long tuples, long nodes) {
+        long perTuple = Math.max(1, nodes);
+        return tuples > Long.MAX_VALUE / perTuple ? Long.MAX_VALUE : tuples * perTuple;
+    }
+
+    /**
+     * Admits a request, adding its cost to the cost in flight; {@link #release(long)} must be called
+     * with the same cost when the request completes.
+     *
+     * @param cost The estimated cost of the request.
+     * @throws Exception If the request is over budget, or it was queued and the budget did not free up in time.
+     */
+    public void admit(long cost) throws Exception {
+        admit(cost, Cancellation.NONE);
+    }
+
+    /**
+     * Admits a request as {@link #admit(long)}; a queued request stops waiting when it is cancelled.
+     *
+     * @param cost         The estimated cost of the request.
+     * @param cancellation The cancellation of the request.
+     * @throws Exception If the request is over budget, it was queued and the budget did not free up in
+     * time, or it was cancelled while queued (see {@link Cancellation#check()}).
+     */
+    public void admit(long cost, Cancellation cancellation) throws Exception {
+        if (cost > maxRequestCost) {
+            rejected.increment();
+            throw new Exception("Request too expensive: cost " + cost + " exceeds the limit of " + maxRequestCost);
+        }
+
+        synchronized (this) {
+            long deadline = System.nanoTime() + queueTimeoutNanos;
+            while (inFlightCost > 0 && inFlightCost + cost > maxInFlightCost) {
+                cancellation.check();
+                long remaining = deadline - System.nanoTime();
+                if (policy == Policy.REJECT || remaining <= 0) {
+                    rejected.increment();
+                    throw new Exception("Server busy: cost " + cost + " exceeds the budget left of "
+                            + Math.max(0, maxInFlightCost - inFlightCost));
+                }
+                // Wakes up in time for the deadline, and now and then to notice a cancellation
+                TimeUnit.NANOSECONDS.timedWait(this,
+                        Math.min(Math.min(remaining, cancellation.getRemainingNanos()), CANCELLATION_POLL_NANOS));
+            }
+            inFlightCost += cost;
+        }
+    }
+
+    /**
+     * Admits a request that can be computed more cheaply, such as an AVG estimated from a sample. With
+     * the DOWNGRADE policy, a request that does not fit the budgets at once is admitted with its
+     * downgraded cost instead, as {@link #admit(long, Cancellation)}; with the other policies this is
+     * {@link #admit(long, Cancellation)} with its full cost.
+     *
+     * @param cost           The estimated cost of the request.
+     * @param downgradedCost The estimated cost of the cheaper computation.
+     * @param cancellation   The cancellation of the request.
+     * @return True if the request was admitted with its full cost, false if it must be downgraded.
+     * @throws Exception As {@link #admit(long, Cancellation)}.
+     */
+    public boolean admitOrDowngrade(long cost, long downgradedCost, Cancellation cancellation) throws Exception {
+        if (policy != Policy.DOWNGRADE) {
+            admit(cost, cancellation);
+            return true;
+        }
+        if (tryAdmit(cost)) {
+            return true;
+        }
+        admit(downgradedCost, cancellation);
+        downgraded.increment();
+        return false;
+    }
+
+    // Admits a request only if it fits the budgets at once, returning false without waiting otherwise
+    public synchronized boolean tryAdmit(long cost) {
+        if (cost > maxRequestCost || (inFlightCost > 0 && inFlightCost + cost > maxInFlightCost)) {
+            return false;
+        }
+        inFlightCost += cost;
+        return true;
+    }
+
+    // Removes the cost of a completed request from the cost in flight
+    public synchronized void release(long cost) {
+        inFlightCost -= cost;
+        notifyAll();
+    }
+
+    // Returns the total cost of the requests in flight
+    public synchronized long getInFlightCost() {
+        return inFlightCost;
+    }
+
+    // Returns the number of requests rejected
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    // Returns the number of requests computed more cheaply by the DOWNGRADE policy
+    public long getDowngraded() {
+        return downgraded.sum();
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+}
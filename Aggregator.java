@@ -0,0 +1,56 @@
+/**
+ * The Aggregator interface reduces the values of the expressions of a computation job to its result
+ * in a single pass, keeping only a small state. The aggregators of disjoint ranges of tuples can be
+ * merged, in any grouping, into the aggregator of their union, so a job can be split into chunks
+ * reduced in parallel, and the state of an aggregator can be encoded as text to be merged elsewhere.
+ *
+ * Aggregators are created by {@link Aggregators#create(ComputationEngine.ComputationKind)} and are
+ * not thread-safe: each range of tuples is reduced into its own aggregator.
+ */
+public interface Aggregator {
+
+    // Adds a value of an expression at a tuple
+    void accumulate(double value);
+
+    /**
+     * Adds the values of a block of tuples, tuple by tuple and, within a tuple, in column order, as
+     * the same calls to {@link #accumulate(double)} would.
+     *
+     * @param columns The values of each expression, one column per expression.
+     * @param length  The number of tuples of the block.
+     */
+    default void accumulateBlock(double[][] columns, int length) {
+        for (int k = 0; k < length; k++) {
+            for (double[] column : columns) {
+                accumulate(column[k]);
+            }
+        }
+    }
+
+    /**
+     * Adds the values accumulated by another aggregator of the same kind, over the tuples following
+     * the ones of this aggregator.
+     *
+     * @param other The aggregator to merge; it must not be used afterwards.
+     */
+    void merge(Aggregator other);
+
+    /**
+     * Returns the result of the job.
+     *
+     * @param tuples The number of tuples the values were accumulated over.
+     * @return The result.
+     */
+    double result(long tuples);
+
+    // Returns the state as text without ';', '|' or whitespace, to be restored by decode(String)
+    String encode();
+
+    /**
+     * Replaces the state with one returned by {@link #encode()} on an aggregator of the same kind.
+     *
+     * @param state The encoded state.
+     * @throws Exception If the state is malformed.
+     */
+    void decode(String state) throws Exception;
+}
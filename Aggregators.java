@@ -0,0 +1,356 @@
+/**
+ * The Aggregators class creates the {@link Aggregator} of each computation kind:
+ * <ul>
+ *   <li>MIN and MAX: the smallest and the largest value;</li>
+ *   <li>SUM: the sum of the values, and AVG: their sum divided by the number of tuples, both by
+ *   compensated summation, so rounding errors do not build up over many values;</li>
+ *   <li>COUNT: the number of tuples;</li>
+ *   <li>VAR and STDDEV: the population variance and standard deviation of the values, by Welford's
+ *   method, merged with the formula of Chan et al.;</li>
+ *   <li>MEDIAN, P90 and P99: the nearest-rank quantiles of the values, estimated by a
+ *   {@link QuantileSketch}.</li>
+ * </ul>
+ * A NaN value makes the result NaN, except for COUNT.
+ */
+public class Aggregators {
+
+    /**
+     * Creates an empty aggregator for a computation kind.
+     *
+     * @param kind The computation kind.
+     * @return The aggregator.
+     * @throws IllegalArgumentException If the kind is not computed by an aggregator (AAVG).
+     */
+    public static Aggregator create(ComputationEngine.ComputationKind kind) {
+        switch (kind) {
+            case MIN:
+                return new Min();
+            case MAX:
+                return new Max();
+            case SUM:
+                return new Sum(false);
+            case AVG:
+                return new Sum(true);
+            case COUNT:
+                return new Count();
+            case VAR:
+                return new Variance(false);
+            case STDDEV:
+                return new Variance(true);
+            case MEDIAN:
+                return new Quantile(50);
+            case P90:
+                return new Quantile(90);
+            case P99:
+                return new Quantile(99);
+            default:
+                throw new IllegalArgumentException("Unsupported computation type: " + kind);
+        }
+    }
+
+    // Parses an encoded state made of the given number of values separated by commas
+    private static double[] parse(String state, int count) throws Exception {
+        String[] parts = state.split(",", -1);
+        if (parts.length != count) {
+            throw new Exception("Malformed aggregator state");
+        }
+        double[] values = new double[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                values[i] = Double.parseDouble(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            throw new Exception("Malformed aggregator state");
+        }
+        return values;
+    }
+
+    // The smallest value, Double.MAX_VALUE if there is none
+    static class Min implements Aggregator {
+        private double value = Double.MAX_VALUE;
+
+        @Override
+        public void accumulate(double value) {
+            this.value = Math.min(this.value, value);
+        }
+
+        @Override
+        public void accumulateBlock(double[][] columns, int length) {
+            double result = value;
+            for (int k = 0; k < length; k++) {
+                for (double[] column : columns) {
+                    result = Math.min(result, column[k]);
+                }
+            }
+            value = result;
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+            value = Math.min(value, ((Min) other).value);
+        }
+
+        @Override
+        public double result(long tuples) {
+            return value;
+        }
+
+        @Override
+        public String encode() {
+            return Double.toString(value);
+        }
+
+        @Override
+        public void decode(String state) throws Exception {
+            value = parse(state, 1)[0];
+        }
+    }
+
+    // The largest value, -Double.MAX_VALUE if there is none
+    static class Max implements Aggregator {
+        private double value = -Double.MAX_VALUE;
+
+        @Override
+        public void accumulate(double value) {
+            this.value = Math.max(this.value, value);
+        }
+
+        @Override
+        public void accumulateBlock(double[][] columns, int length) {
+            double result = value;
+            for (int k = 0; k < length; k++) {
+                for (double[] column : columns) {
+                    result = Math.max(result, column[k]);
+                }
+            }
+            value = result;
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+            value = Math.max(value, ((Max) other).value);
+        }
+
+        @Override
+        public double result(long tuples) {
+            return value;
+        }
+
+        @Override
+        public String encode() {
+            return Double.toString(value);
+        }
+
+        @Override
+        public void decode(String state) throws Exception {
+            value = parse(state, 1)[0];
+        }
+    }
+
+    // The sum of the values, or their average over the tuples, with compensated summation: the rounding
+    // error of each addition is computed exactly by Knuth's TwoSum and added up apart, which has the
+    // accuracy of Neumaier's summation without its branch
+    static class Sum implements Aggregator {
+        private final boolean average;
+        private double sum = 0.0;
+        private double compensation = 0.0; // Low-order bits lost by the additions to sum
+
+        Sum(boolean average) {
+            this.average = average;
+        }
+
+        @Override
+        public void accumulate(double value) {
+            double total = sum + value;
+            double added = total - sum;
+            compensation += (sum - (total - added)) + (value - added);
+            sum = total;
+        }
+
+        @Override
+        public void accumulateBlock(double[][] columns, int length) {
+            double s = sum;
+            double c = compensation;
+            for (int k = 0; k < length; k++) {
+                for (double[] column : columns) {
+                    double value = column[k];
+                    double total = s + value;
+                    double added = total - s;
+                    c += (s - (total - added)) + (value - added);
+                    s = total;
+                }
+            }
+            sum = s;
+            compensation = c;
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+            Sum sumOther = (Sum) other;
+            accumulate(sumOther.sum);
+            compensation += sumOther.compensation;
+        }
+
+        @Override
+        public double result(long tuples) {
+            // Once the sum is infinite or NaN the compensation is meaningless, and may be NaN
+            double total = Double.isFinite(sum) ? sum + compensation : sum;
+            return average ? total / tuples : total;
+        }
+
+        @Override
+        public String encode() {
+            return sum + "," + compensation;
+        }
+
+        @Override
+        public void decode(String state) throws Exception {
+            double[] values = parse(state, 2);
+            sum = values[0];
+            compensation = values[1];
+        }
+    }
+
+    // The number of tuples, which needs no values
+    static class Count implements Aggregator {
+
+        @Override
+        public void accumulate(double value) {
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+        }
+
+        @Override
+        public double result(long tuples) {
+            return tuples;
+        }
+
+        @Override
+        public String encode() {
+            return "";
+        }
+
+        @Override
+        public void decode(String state) throws Exception {
+            if (!state.isEmpty()) {
+                throw new Exception("Malformed aggregator state");
+            }
+        }
+    }
+
+    // The population variance, or standard deviation, of the values, NaN if there is none
+    static class Variance implements Aggregator {
+        private final boolean deviation;
+        private long count = 0;
+        private double mean = 0.0;
+        private double squares = 0.0; // Sum of the squared deviations from the mean
+
+        Variance(boolean deviation) {
+            this.deviation = deviation;
+        }
+
+        @Override
+        public void accumulate(double value) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            squares += delta * (value - mean);
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+            Variance variance = (Variance) other;
+            if (variance.count == 0) {
+                return;
+            }
+            if (count == 0) {
+                count = variance.count;
+                mean = variance.mean;
+                squares = variance.squares;
+                return;
+            }
+            long total = count + variance.count;
+            double delta = variance.mean - mean;
+            mean += delta * variance.count / total;
+            squares += variance.squares + delta * delta * count / total * variance.count;
+            count = total;
+        }
+
+        @Override
+        public double result(long tuples) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            double variance = squares / count;
+            return deviation ? Math.sqrt(variance) : variance;
+        }
+
+        // Returns the number of values
+        long getCount() {
+            return count;
+        }
+
+        // Returns the mean of the values
+        double getMean() {
+            return mean;
+        }
+
+        // Returns the unbiased estimate of the variance of a population the values are a sample of
+        double getSampleVariance() {
+            return count < 2 ? Double.POSITIVE_INFINITY : squares / (count - 1);
+        }
+
+        @Override
+        public String encode() {
+            return count + "," + mean + "," + squares;
+        }
+
+        @Override
+        public void decode(String state) throws Exception {
+            double[] values = parse(state, 3);
+            if (values[0] < 0 || values[0] != Math.rint(values[0])) {
+                throw new Exception("Malformed aggregator state");
+            }
+            count = (long) values[0];
+            mean = values[1];
+            squares = values[2];
+        }
+    }
+
+    // A quantile of the values, estimated by a sketch, NaN if there is none
+    static class Quantile implements Aggregator {
+        private final int percent;
+        private final QuantileSketch sketch = new QuantileSketch();
+
+        Quantile(int percent) {
+            this.percent = percent;
+        }
+
+        @Override
+        public void accumulate(double value) {
+            sketch.add(value);
+        }
+
+        @Override
+        public void merge(Aggregator other) {
+            sketch.merge(((Quantile) other).sketch);
+        }
+
+        @Override
+        public double result(long tuples) {
+            return sketch.getPercentile(percent);
+        }
+
+        @Override
+        public String encode() {
+            return sketch.encode();
+        }
+
+        @Override
+        public void decode(String state) throws Exception {
+            sketch.decode(state);
+        }
+    }
+}
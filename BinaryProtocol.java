@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The BinaryProtocol class defines the length-prefixed binary framing that a client can switch to by
+ * sending the line {@value #NEGOTIATION_REQUEST} (the server answers {@value #NEGOTIATION_RESPONSE}).
+ * Every frame is a big-endian int32 payload length followed by the payload, of at most
+ * {@value #MAX_FRAME_SIZE} bytes like a request line; a frame declaring a longer payload closes the
+ * connection.
+ *
+ * Request payloads start with a type byte:
+ * <ul>
+ *   <li>{@link #COMPUTATION}: u8 ordinal of the ComputationKind, u8 values kind (0 GRID, 1 LIST),
+ *   u16 number of variables, then for each variable a u16-length UTF-8 name and the start, step and
+ *   end as IEEE-754 doubles, then the u32-length ASCII expressions, separated by commas;</li>
+ *   <li>{@link #TEXT}: a text request (for example a STAT_ request) as UTF-8 bytes;</li>
+ *   <li>{@link #QUIT}: closes the connection;</li>
+ *   <li>{@link #TIMED_COMPUTATION}: the u32 time the request has to complete, in milliseconds (0 for
+ *   no deadline), followed by the payload of a {@link #COMPUTATION} request. A request past its deadline
+ *   is answered with the error {@value Cancellation#TIMEOUT_MESSAGE}.</li>
+ * </ul>
+ *
+ * Response payloads start with a status byte:
+ * <ul>
+ *   <li>{@link #OK}: the result and the time taken in seconds, as doubles;</li>
+ *   <li>{@link #ERR}: the u16-length UTF-8 error message and the time taken in seconds;</li>
+ *   <li>{@link #TEXT_RESPONSE}: the text response line as UTF-8 bytes.</li>
+ * </ul>
+ */
+public class BinaryProtocol {
+
+    public static final String NEGOTIATION_REQUEST = "BINARY";
+    public static final String NEGOTIATION_RESPONSE = "OK;BINARY";
+    public static final int MAX_FRAME_SIZE = LineFramer.MAX_LINE_LENGTH;
+
+    // Request types
+    public static final byte COMPUTATION = 0;
+    public static final byte TEXT = 1;
+    public static final byte QUIT = 2;
+    public static final byte TIMED_COMPUTATION = 3;
+
+    // Response statuses
+    public static final byte OK = 0;
+    public static final byte ERR = 1;
+    public static final byte TEXT_RESPONSE = 2;
+
+    private static final String[] VALUES_KINDS = {"GRID", "LIST"};
+
+    // A decoded computation request
+    public static class Computation {
+        final ComputationEngine.ComputationKind kind;
+        final String valuesKind;
+        final String[] names;
+        final double[] starts;
+        final double[] steps;
+        final double[] ends;
+        final String expressions;
+
+        Computation(ComputationEngine.ComputationKind kind, String valuesKind, String[] names,
+                    double[] starts, double[] steps, double[] ends, String expressions) {
+            this.kind = kind;
+            this.valuesKind = valuesKind;
+            this.names = names;
+            this.starts = starts;
+            this.steps = steps;
+            this.ends = ends;
+            this.expressions = expressions;
+        }
+    }
+
+    /**
+     * Decodes the payload of a computation request, positioned after the type byte.
+     *
+     * @param payload The payload.
+     * @return The computation.
+     * @throws Exception If the payload is malformed.
+     */
+    public static Computation decodeComputation(ByteBuffer payload) throws Exception {
+        try {
+            int kindOrdinal = Byte.toUnsignedInt(payload.get());
+            int valuesKindCode = Byte.toUnsignedInt(payload.get());
+            ComputationEngine.ComputationKind[] kinds = ComputationEngine.ComputationKind.values();
+            if (kindOrdinal >= kinds.length) {
+                throw new Exception("Invalid computation type: " + kindOrdinal);
+            }
+            if (valuesKindCode >= VALUES_KINDS.length) {
+                throw new Exception("Unsupported ValuesKind type: " + valuesKindCode);
+            }
+
+            int count = Short.toUnsignedInt(payload.getShort());
+            String[] names = new String[count];
+            double[] starts = new double[count];
+            double[] steps = new double[count];
+            double[] ends = new double[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = getString(payload, Short.toUnsignedInt(payload.getShort()), StandardCharsets.UTF_8);
+                starts[i] = payload.getDouble();
+                steps[i] = payload.getDouble();
+                ends[i] = payload.getDouble();
+            }
+            String expressions = getString(payload, payload.getInt(), StandardCharsets.ISO_8859_1);
+
+            return new Computation(kinds[kindOrdinal], VALUES_KINDS[valuesKindCode], names, starts, steps, ends, expressions);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException or a negative length
+            throw new Exception("Malformed binary request");
+        }
+    }
+
+    // Decodes the payload of a text request, positioned after the type byte
+    public static String decodeText(ByteBuffer payload) {
+        return getString(payload, payload.remaining(), StandardCharsets.UTF_8);
+    }
+
+    // Reads a string straight from the backing array of the buffer
+    private static String getString(ByteBuffer payload, int length, java.nio.charset.Charset charset) {
+        if (length < 0 || length > payload.remaining()) {
+            throw new IllegalArgumentException("Invalid string length");
+        }
+        String string = new String(payload.array(), payload.arrayOffset() + payload.position(), length, charset);
+        payload.position(payload.position() + length);
+        return string;
+    }
+
+    // Encodes a successful computation response frame
+    public static ByteBuffer encodeResult(BufferPool pool, double result, double seconds) {
+        ByteBuffer frame = pool.acquire(4 + 1 + 8 + 8);
+        frame.putInt(1 + 8 + 8).put(OK).putDouble(result).putDouble(seconds);
+        return frame.flip();
+    }
+
+    // Encodes a failed computation response frame
+    public static ByteBuffer encodeError(BufferPool pool, String message, double seconds) {
+        byte[] bytes = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, 0xFFFF);
+        ByteBuffer frame = pool.acquire(4 + 1 + 2 + length + 8);
+        frame.putInt(1 + 2 + length + 8).put(ERR).putShort((short) length).put(bytes, 0, length).putDouble(seconds);
+        return frame.flip();
+    }
+
+    // Encodes a text response frame
+    public static ByteBuffer encodeText(BufferPool pool, String response) {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = pool.acquire(4 + 1 + bytes.length);
+        frame.putInt(1 + bytes.length).put(TEXT_RESPONSE).put(bytes);
+        return frame.flip();
+    }
+}
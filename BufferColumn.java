@@ -0,0 +1,51 @@
+import java.nio.DoubleBuffer;
+
+/**
+ * The BufferColumn class is the column of a variable taken from a dataset: its values are kept off
+ * the heap, in a buffer over a memory-mapped file or in a direct buffer, and are read in place, so a
+ * dataset is loaded once and then shared by all the requests using it.
+ */
+public class BufferColumn implements Column {
+
+    private final DoubleBuffer values; // Only read with absolute gets, which change no state, so it can be shared
+    private final boolean nonDecreasing;
+
+    public BufferColumn(DoubleBuffer values) {
+        this.values = values;
+        this.nonDecreasing = checkNonDecreasing(values);
+    }
+
+    // Reads all the values once, to know whether the bounds of a slice are its first and last value
+    private static boolean checkNonDecreasing(DoubleBuffer values) {
+        double previous = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < values.limit(); i++) {
+            double value = values.get(i);
+            if (!(value >= previous)) { // Also false for NaN
+                return false;
+            }
+            previous = value;
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return values.limit();
+    }
+
+    @Override
+    public double get(int index) {
+        return values.get(index);
+    }
+
+    @Override
+    public void copyTo(int from, double[] target, int offset, int length) {
+        values.get(from, target, offset, length);
+    }
+
+    // Checked when the column is created, as the values of a dataset are in no particular order
+    @Override
+    public boolean isNonDecreasing() {
+        return nonDecreasing;
+    }
+}
@@ -0,0 +1,56 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The BufferPool class recycles the byte buffers used to read and write binary frames, so that a
+ * steady stream of requests does not allocate a new buffer for each of them. Buffers of the standard
+ * size are pooled; larger buffers are allocated on demand and left to the garbage collector.
+ */
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED = 256;
+
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    // Returns a cleared buffer with at least the given capacity
+    public ByteBuffer acquire(int capacity) {
+        if (capacity > BUFFER_SIZE) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Replaces a full buffer with one holding its content and twice its capacity, so that a payload is
+     * stored as its bytes arrive instead of at the length announced before them.
+     *
+     * @param buffer      The full buffer, released to the pool.
+     * @param maxCapacity The capacity the buffer never needs to exceed, larger than its current one.
+     * @return The larger buffer, positioned after the content.
+     */
+    public ByteBuffer grow(ByteBuffer buffer, int maxCapacity) {
+        ByteBuffer larger = ByteBuffer.allocate((int) Math.min(2L * buffer.capacity(), maxCapacity));
+        larger.put(buffer.flip());
+        release(buffer);
+        return larger;
+    }
+
+    // Gives a buffer back to the pool; it must not be used afterwards
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() == BUFFER_SIZE && pooled.incrementAndGet() <= MAX_POOLED) {
+            buffers.add(buffer);
+        } else if (buffer.capacity() == BUFFER_SIZE) {
+            pooled.decrementAndGet();
+        }
+    }
+}
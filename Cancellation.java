@@ -0,0 +1,92 @@
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The Cancellation class tells a running request that it should stop: because its deadline passed,
+ * or because it was cancelled, for example when its client disconnected. The computation loops poll
+ * it every few thousand tuples and stop early, and the request is then answered with an error:
+ * {@value #TIMEOUT_MESSAGE} when the deadline passed.
+ */
+public class Cancellation {
+
+    public static final String TIMEOUT_MESSAGE = "TIMEOUT";
+    public static final String CANCELLED_MESSAGE = "Cancelled";
+
+    private static final long WAIT_POLL_MILLIS = 50; // Interval between two checks while waiting for a future
+
+    // For requests without deadline that nothing cancels; it must not be cancelled
+    public static final Cancellation NONE = new Cancellation(0);
+
+    private final long deadlineNanos; // Value of System.nanoTime() at the deadline
+    private final boolean hasDeadline;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates the cancellation of a request received now.
+     *
+     * @param timeoutMillis The time the request has to complete, 0 for no deadline.
+     */
+    public Cancellation(long timeoutMillis) {
+        this.hasDeadline = timeoutMillis > 0;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    // Asks the request to stop
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // Returns whether the request should stop
+    public boolean isCancelled() {
+        return cancelled || isTimedOut();
+    }
+
+    // Returns whether the deadline of the request passed
+    public boolean isTimedOut() {
+        return hasDeadline && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    // Returns the time left before the deadline, in nanoseconds, or Long.MAX_VALUE without deadline
+    public long getRemainingNanos() {
+        return hasDeadline ? Math.max(0, deadlineNanos - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Checks whether the request should stop.
+     *
+     * @throws Exception With message {@value #TIMEOUT_MESSAGE} if the deadline passed, or
+     * {@value #CANCELLED_MESSAGE} if the request was cancelled.
+     */
+    public void check() throws Exception {
+        if (isTimedOut()) {
+            throw new Exception(TIMEOUT_MESSAGE);
+        }
+        if (cancelled) {
+            throw new Exception(CANCELLED_MESSAGE);
+        }
+    }
+
+    /**
+     * Waits for the result of work done for the request elsewhere, checking every few milliseconds
+     * whether the request should stop.
+     *
+     * @param future The result.
+     * @return The value of the result.
+     * @throws Exception The failure of the result, or as {@link #check()} if the request should stop first.
+     */
+    public <T> T await(Future<T> future) throws Exception {
+        while (true) {
+            check();
+            try {
+                return future.get(WAIT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // Not yet: checks the request again
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+    }
+}
@@ -1,74 +1,126 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-
-import it.units.project.expression.Parser;
-import it.units.project.expression.Node;
-import it.units.project.expression.Variable;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 /**
  * The ClientHandler class manages communication with a single client in a separate thread.
  * It receives requests, processes them, and returns results. It supports both statistical
  * and computation requests, and keeps the connection open until it receives the "BYE" command.
+ *
+ * Requests are pipelined: the handler keeps reading while earlier requests are still being processed
+ * on the compute threads of the server, with at most a window of requests in flight, and responses are
+ * written in the order the requests arrived. The requests of the connection are queued in its own
+ * flow of the {@link FairScheduler}, with their estimated cost. This also keeps CPU-bound work on a bounded number of
+ * platform threads when the handler runs on a virtual thread.
+ *
+ * After the "BINARY" command the connection switches to the frames of the {@link BinaryProtocol},
+ * which are pipelined in the same way.
+ *
+ * When the client disconnects (the end of the stream is read, or a response cannot be written), the
+ * requests still in flight are cancelled, so they do not keep the compute threads busy for nothing.
  */
 public class ClientHandler extends Thread {
     private final Socket clientSocket;
     private final Server server;
-    private static final String QUIT_REQUEST = "BYE"; // Command to close the connection
+    private final RequestProcessor processor;
+    private final FairScheduler.Flow flow; // Queue of the requests of the connection in the scheduler
+    private final int pipelineWindow; // Maximum number of requests in flight
+    private final BufferPool bufferPool;
+    private final Semaphore window; // Free slots for requests in flight
+    private final Set<Cancellation> inFlight = ConcurrentHashMap.newKeySet(); // Cancellations of the requests in flight
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null); // Write of the last response
+    private final LineFramer framer = new LineFramer(); // Splits the bytes of the connection into lines
+    static final String QUIT_REQUEST = "BYE"; // Command to close the connection
 
     public ClientHandler(Socket clientSocket, Server server) {
         this.clientSocket = clientSocket;
         this.server = server;
+        this.processor = server.getRequestProcessor();
+        this.flow = server.getScheduler().newFlow();
+        this.pipelineWindow = server.getConfig().getPipelineWindow();
+        this.bufferPool = server.getBufferPool();
+        this.window = new Semaphore(pipelineWindow);
     }
 
     /**
      * Main loop to handle client requests.
-     * Continuously receives requests and processes them until the "BYE" command is received.
+     * Continuously receives requests and processes them until the "BYE" command is received
+     * or the client disconnects.
      */
     @Override
     public void run() {
         try {
-            // Setup streams for communication with the client
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+            // Setup streams for communication with the client; lines are read from the byte stream,
+            // so that the bytes following the "BINARY" command are still available as frames
+            InputStream in = new BufferedInputStream(clientSocket.getInputStream());
+            OutputStream rawOut = clientSocket.getOutputStream();
+            PrintWriter out = new PrintWriter(rawOut, true);
 
             String request;
-            // Read requests and handle null requests
-            while (true) {
-                request = in.readLine();
-
-                // Check if the request is null
-                if (request == null) {
-                    // Print an error and continue waiting for new requests
-                    System.err.println("Error: null request received from client");
-                    continue;
-                }
-
+            boolean disconnected = true;
+            // Read requests until the client disconnects (null request)
+            while ((request = readLine(in)) != null) {
                 // Close the connection only when "BYE" is received
                 if (request.equals(QUIT_REQUEST)) {
+                    disconnected = false;
                     break;
                 }
 
-                // Process the request
-                long requestStartTime = System.currentTimeMillis();
-                String response = handleRequest(request);
+                // Switch to the binary protocol, after answering the previous requests
+                if (request.equals(BinaryProtocol.NEGOTIATION_REQUEST)) {
+                    lastWrite = lastWrite.thenRun(() -> out.println(BinaryProtocol.NEGOTIATION_RESPONSE));
+                    disconnected = serveBinary(new DataInputStream(in), rawOut);
+                    break;
+                }
 
-                // Increment request count
-                server.incrementRequestCount();
+                // Wait for a free slot in the window, then queue the request in the scheduler
+                window.acquire();
+                String current = request;
+                Cancellation cancellation = processor.newCancellation(current);
+                inFlight.add(cancellation);
+                CompletableFuture<String> response = CompletableFuture
+                        .supplyAsync(() -> processor.process(current, cancellation), flow.executor(processor.estimateCost(current)))
+                        .exceptionally(e -> "ERR;" + e.getMessage());
+
+                // Send the response to the client with the time taken, after the previous responses
+                lastWrite = lastWrite.thenCombine(response, (previous, line) -> line).thenAccept(line -> {
+                    long writeStartTime = System.nanoTime();
+                    out.println(line);
+                    server.addPhaseTime(RequestTrace.Phase.WRITE, System.nanoTime() - writeStartTime);
+                    inFlight.remove(cancellation);
+                    window.release();
+                    if (out.checkError()) {
+                        cancelInFlight(); // The client is gone
+                    }
+                });
+            }
 
-                double elapsedTime = (System.currentTimeMillis() - requestStartTime) / 1000.0;
-                server.addResponseTime(elapsedTime); // Update statistics
+            // The rest of a line too long is not read: the previous requests and the error are answered
+            if (framer.isTooLong()) {
+                lastWrite = lastWrite.thenRun(() -> out.println(LineFramer.LINE_TOO_LONG_ERROR));
+                disconnected = false;
+            }
 
-                // Send the response to the client with the time taken
-                out.println(response + ";" + String.format("%.3f", elapsedTime));
+            // Answer the requests still in flight before closing, unless the client is gone
+            if (disconnected) {
+                cancelInFlight();
             }
+            lastWrite.join();
         } catch (IOException e) {
             System.err.printf("I/O error: %s%n", e.getMessage());
+            cancelInFlight();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
             try {
                 clientSocket.close(); // Close the connection at the end
@@ -82,103 +134,112 @@ public class ClientHandler extends Thread {
         System.out.println("Connection closed");
     }
 
-    // Handles client requests
-    private String handleRequest(String request) {
-        try {
-            if (request.startsWith("STAT_")) {
-                return handleStatRequest(request); // Statistical requests
-            } else {
-                return handleComputationRequest(request); // Computation requests
-            }
-        } catch (Exception e) {
-            return "ERR;" + e.getMessage(); // Return an error in case of exception
+    // Cancels the requests in flight, whose responses cannot be delivered
+    private void cancelInFlight() {
+        for (Cancellation cancellation : inFlight) {
+            cancellation.cancel();
         }
     }
 
-    // Handles statistical requests
-    private String handleStatRequest(String request) {
-        switch (request) {
-            case "STAT_REQS":
-                long totalRequests = server.getTotalRequests(); // Total number of requests
-                return String.format("OK;%d", totalRequests);
-
-            case "STAT_AVG_TIME":
-                double averageResponseTime = server.getAverageResponseTime(); // Average response time
-                return String.format("OK;%.3f", averageResponseTime);
+    /**
+     * Reads the binary frames of the connection until a QUIT frame is received or the client
+     * disconnects, processing them on the compute threads and writing the response frames in order.
+     *
+     * @return Whether the client disconnected without a QUIT frame.
+     */
+    private boolean serveBinary(DataInputStream in, OutputStream out) throws IOException, InterruptedException {
+        while (true) {
+            int length;
+            try {
+                int first = in.readUnsignedByte();
+                if (framer.isLineFeedOfLastLine(first)) {
+                    first = in.readUnsignedByte(); // The "\n" of a "BINARY\r\n" command
+                }
+                length = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+            } catch (EOFException e) {
+                return true; // The client disconnected
+            }
+            if (length < 1 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                System.err.printf("Invalid frame length: %d%n", length);
+                return true;
+            }
 
-            case "STAT_MAX_TIME":
-                double maxResponseTime = server.getMaxResponseTime(); // Maximum response time
-                return String.format("OK;%.3f", maxResponseTime);
+            // The slot is taken before reading, so that at most a window of payloads is held
+            window.acquire();
+            ByteBuffer payload;
+            try {
+                payload = readPayload(in, length);
+            } catch (EOFException e) {
+                window.release();
+                return true; // The client disconnected
+            }
+            if (payload.get(0) == BinaryProtocol.QUIT) {
+                bufferPool.release(payload);
+                window.release();
+                return false;
+            }
 
-            default:
-                return "ERR;Invalid STAT request"; // Error message for invalid requests
+            Cancellation cancellation = processor.newCancellation(payload);
+            inFlight.add(cancellation);
+            CompletableFuture<ByteBuffer> response = CompletableFuture
+                    .supplyAsync(() -> {
+                        try {
+                            return processor.processBinary(payload, cancellation);
+                        } finally {
+                            bufferPool.release(payload);
+                        }
+                    }, flow.executor(processor.estimateCost(payload)))
+                    .exceptionally(e -> BinaryProtocol.encodeError(bufferPool, e.getMessage(), 0));
+
+            lastWrite = lastWrite.thenCombine(response, (previous, frame) -> frame).thenAccept(frame -> {
+                long writeStartTime = System.nanoTime();
+                try {
+                    out.write(frame.array(), 0, frame.limit());
+                    out.flush();
+                } catch (IOException e) {
+                    System.err.printf("I/O error: %s%n", e.getMessage());
+                    cancelInFlight(); // The client is gone
+                } finally {
+                    inFlight.remove(cancellation);
+                    bufferPool.release(frame);
+                    window.release();
+                }
+                server.addPhaseTime(RequestTrace.Phase.WRITE, System.nanoTime() - writeStartTime);
+            });
         }
     }
 
-    // Handles computation requests
-    private String handleComputationRequest(String request) throws Exception {
-        // The format is: "ComputationKind_ValuesKind;VariableValuesFunction;Expressions"
-        String[] parts = request.split(";");
-        if (parts.length != 3) {
-            throw new Exception("Invalid computation request format");
-        }
-
-        // Extract computation type and values type
-        String[] computationParts = parts[0].split("_");
-        if (computationParts.length != 2) {
-            throw new Exception("Invalid computation type format");
-        }
-
-        String computationKindStr = computationParts[0];
-        String valuesKindStr = computationParts[1];
-        String variableValuesFunction = parts[1];
-        String expressionsStr = parts[2];
-
-        // Parse computation type
-        ComputationEngine.ComputationKind computationKind;
-        try {
-            computationKind = ComputationEngine.ComputationKind.valueOf(computationKindStr.toUpperCase());
-        } catch (IllegalArgumentException e) {
-            throw new Exception("Invalid computation type: " + computationKindStr, e);
+    // Reads the payload of a frame, growing its buffer as the bytes arrive rather than trusting its length
+    private ByteBuffer readPayload(DataInputStream in, int length) throws IOException {
+        ByteBuffer payload = bufferPool.acquire(Math.min(length, BufferPool.BUFFER_SIZE));
+        payload.limit(Math.min(length, payload.capacity()));
+        while (true) {
+            int count = payload.remaining();
+            in.readFully(payload.array(), payload.position(), count);
+            payload.position(payload.position() + count);
+            if (payload.position() == length) {
+                return payload.flip();
+            }
+            payload = bufferPool.grow(payload, length);
         }
-
-        // Parse variables (using the static method)
-        Map<String, double[]> variableValues = VariableParser.parseVariableValues(variableValuesFunction);
-
-        // Call static methods from TupleManager to build value tuples
-        List<Map<Variable, Double>> tuples = TupleManager.buildValueTuples(variableValues, valuesKindStr);
-
-        // Parse expressions
-        List<Node> parsedExpressions = parseExpressions(expressionsStr);
-
-        // Create an instance of ComputationEngine and perform the computation
-        ComputationEngine engine = new ComputationEngine(computationKind, parsedExpressions, tuples);
-        double result = engine.compute();
-        return Double.toString(result); // Return the result of the computation
     }
 
     /**
-     * Parses a string of mathematical expressions separated by commas and converts them into a list of nodes.
-     * Each expression is transformed into a node representing the syntax tree of the expression.
+     * Reads a line framed by the {@link LineFramer}, without reading past its terminator.
      *
-     * @param expressions The string of expressions to parse, separated by commas.
-     * @return A list of {@link Node} nodes representing the parsed expressions.
+     * @return The line without the terminator, or null at the end of the stream or if the line is too long.
      */
-    private List<Node> parseExpressions(String expressions) {
-        String[] expressionTokens = expressions.split(",");
-        List<Node> nodes = new ArrayList<>();
-
-        for (String token : expressionTokens) {
-            try {
-                Parser parser = new Parser(token);
-                Node node = parser.parse();
-                nodes.add(node);
-            } catch (Exception e) {
-                System.err.println("Error parsing expression: " + token);
-                // Add any specific error handling here if needed
+    private String readLine(InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) != -1) {
+            String line = framer.add(b);
+            if (line != null) {
+                return line;
+            }
+            if (framer.isTooLong()) {
+                return null;
             }
         }
-
-        return nodes;
+        return framer.finish();
     }
 }
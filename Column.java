@@ -0,0 +1,75 @@
+/**
+ * The Column interface gives access to the values of a variable by index, without requiring them to
+ * be stored: a range of values, for example, computes each value from its index. Columns are read by
+ * the cursors of a {@link TupleSpace}.
+ */
+public interface Column {
+
+    // Returns the number of values
+    int size();
+
+    // Returns the value with the given index
+    double get(int index);
+
+    /**
+     * Copies a slice of the values into an array.
+     *
+     * @param from   The index of the first value to copy.
+     * @param target The array receiving the values.
+     * @param offset The position of the first value in the array.
+     * @param length The number of values to copy.
+     */
+    default void copyTo(int from, double[] target, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            target[offset + i] = get(from + i);
+        }
+    }
+
+    // Returns true if no value is smaller than the one before it (NaN values excluded), so the values
+    // with index in [from, to] lie between get(from) and get(to)
+    default boolean isNonDecreasing() {
+        return false;
+    }
+
+    // Returns true if a value may be -0.0, which the expression programs must know to simplify x+0 to x
+    default boolean mayBeNegativeZero() {
+        return true;
+    }
+
+    /**
+     * Returns a view of consecutive values of the column, reading the same values.
+     *
+     * @param from   The index of the first value of the view.
+     * @param length The number of values of the view.
+     * @return The view.
+     */
+    default Column slice(int from, int length) {
+        Column column = this;
+        return new Column() {
+            @Override
+            public int size() {
+                return length;
+            }
+
+            @Override
+            public double get(int index) {
+                return column.get(from + index);
+            }
+
+            @Override
+            public void copyTo(int start, double[] target, int offset, int count) {
+                column.copyTo(from + start, target, offset, count);
+            }
+
+            @Override
+            public boolean isNonDecreasing() {
+                return column.isNonDecreasing();
+            }
+
+            @Override
+            public boolean mayBeNegativeZero() {
+                return column.mayBeNegativeZero();
+            }
+        };
+    }
+}
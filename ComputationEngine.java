@@ -1,125 +1,676 @@
-import it.units.project.expression.Constant;
 import it.units.project.expression.Node;
-import it.units.project.expression.Operator;
-import it.units.project.expression.Variable;
 
 import java.util.List;
-import java.util.Map;
-import java.util.function.BinaryOperator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The ComputationEngine class is responsible for performing computations on mathematical expressions
  * based on variables and their values. It supports various operations such as calculating minimum, maximum,
  * average, and count.
+ *
+ * The values of the expressions are reduced by an {@link Aggregator} per job (see {@link Aggregators}),
+ * which also computes sums, variances and quantiles in a single pass; the aggregators of the chunks
+ * of a request reduced in parallel are merged into its result.
+ *
+ * Large requests are split into chunks of tuples that are reduced in parallel on the common
+ * fork/join pool; requests whose estimated work is below {@link #PARALLEL_THRESHOLD} run on the
+ * calling thread.
+ *
+ * In "GRID" mode the tuples are visited as nested loops over the variables, and each instruction of
+ * the program runs only when a variable it depends on changes: a subexpression of the outer variables
+ * is computed once per iteration of their loops and reused by all the inner iterations. The loop
+ * order with the fewest instruction runs is chosen for requests with a few variables.
+ * In "LIST" mode, whose values already are columns, the tuples are evaluated and reduced in blocks.
+ *
+ * MIN and MAX over large grids are computed by branch and bound: the grid is split into boxes of
+ * tuples, the values of the expressions over each box are bounded with interval arithmetic (see
+ * {@link ExpressionProgram#bound(double[], double[], boolean[])}), and only the boxes that may change
+ * the result found so far are split further and eventually scanned. Boxes are skipped only when none
+ * of their values can change the result, NaN and the sign of zero included, so the result is exactly
+ * the one of a full scan.
+ *
+ * AAVG estimates the AVG of a space too large to be evaluated in full from a random sample of its
+ * tuples, with a bound of the error (see {@link #estimateAverage(double, long, Cancellation)}).
+ *
+ * The loops poll the {@link Cancellation} of the request every {@link #CANCELLATION_INTERVAL} tuples
+ * (and every block), so a request past its deadline, or whose client disconnected, stops early.
  */
 public class ComputationEngine {
 
-    // Enum defining the available computation types
+    // Minimum amount of work (tuples times instructions) for a request to be reduced in parallel
+    static final long PARALLEL_THRESHOLD = 1L << 17;
+    // Minimum amount of work of a single chunk, so that task overhead stays negligible
+    private static final long MIN_CHUNK_WORK = 1L << 14;
+    // Number of chunks per worker, so that work stealing can balance uneven chunks
+    private static final int CHUNKS_PER_WORKER = 4;
+    // Maximum number of variables for which all the loop orders are compared
+    private static final int MAX_ORDERED_VARIABLES = 6;
+    private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0);
+    // Number of tuples evaluated between two checks of the cancellation
+    static final int CANCELLATION_INTERVAL = 4096;
+    // Minimum number of tuples for MIN and MAX over a grid to be computed by branch and bound
+    static final long BOUND_THRESHOLD = 1L << 16;
+    // Number of tuples below which a box is scanned instead of being split
+    private static final int LEAF_TUPLES = 1024;
+    // Number of tuples whose values a grid reduction buffers before adding them to the aggregators
+    private static final int BUFFERED_TUPLES = 256;
+    // Number of samples an estimated average takes at least, so that their variance is reliable
+    static final long MIN_SAMPLES = 1000;
+    // Quantile of the normal distribution giving the 95% confidence interval of an estimated average
+    private static final double CONFIDENCE_Z = 1.959963984540054;
+
+    // Enum defining the available computation types; AAVG is the AVG estimated by sampling, the others
+    // are computed by the aggregator of the kind
     public enum ComputationKind {
-        MIN, MAX, AVG, COUNT
+        MIN, MAX, AVG, COUNT, AAVG, SUM, VAR, STDDEV, MEDIAN, P90, P99
     }
 
-    private final ComputationKind kind;
+    private final ComputationKind[] kinds; // Computation of each job
+    private final int[][] jobOutputs;      // Expressions (program outputs) reduced by each job
     private final List<Node> expressions;
-    private final List<Map<Variable, Double>> tuples;
+    private final TupleSpace tuples;
+    private ExpressionProgram program; // Compiled expressions, with a slot for each variable of the tuples
+    private Cancellation cancellation = Cancellation.NONE; // Polled by the loops of the running computation
 
     // Constructor that accepts the computation type, expressions, and variable tuples
-    public ComputationEngine(ComputationKind kind, List<Node> expressions, List<Map<Variable, Double>> tuples) {
-        this.kind = kind;
+    public ComputationEngine(ComputationKind kind, List<Node> expressions, TupleSpace tuples) {
+        this(new ComputationKind[]{kind}, null, expressions, null, tuples);
+    }
+
+    // Constructor that accepts expressions already compiled for the variables of the tuples
+    public ComputationEngine(ComputationKind kind, ExpressionProgram program, TupleSpace tuples) {
+        this(new ComputationKind[]{kind}, null, null, program, tuples);
+    }
+
+    /**
+     * Constructor for several computations (jobs) over the same tuples, evaluated in a single pass:
+     * every expression of the program is evaluated once per tuple and fed to the jobs using it.
+     *
+     * @param kinds      The computation of each job.
+     * @param jobOutputs For each job, the indexes of the program outputs it reduces.
+     * @param program    The expressions of all the jobs, compiled for the variables of the tuples.
+     * @param tuples     The tuples.
+     */
+    public ComputationEngine(ComputationKind[] kinds, int[][] jobOutputs, ExpressionProgram program, TupleSpace tuples) {
+        this(kinds, jobOutputs, null, program, tuples);
+    }
+
+    private ComputationEngine(ComputationKind[] kinds, int[][] jobOutputs, List<Node> expressions,
+                              ExpressionProgram program, TupleSpace tuples) {
+        this.kinds = kinds;
+        this.jobOutputs = jobOutputs;
         this.expressions = expressions;
+        this.program = program;
         this.tuples = tuples;
     }
 
     // Main method that performs the computation based on the requested operation type
     public double compute() throws Exception {
+        return computeAll()[0];
+    }
+
+    // Performs the computation, stopping early if it is cancelled
+    public double compute(Cancellation cancellation) throws Exception {
+        return computeAll(cancellation)[0];
+    }
+
+    // Performs the computation of every job, returning their results in order
+    public double[] computeAll() throws Exception {
+        return computeAll(Cancellation.NONE);
+    }
+
+    /**
+     * Performs the computation of every job, stopping early if it is cancelled.
+     *
+     * @param cancellation The cancellation of the request, polled while the tuples are reduced.
+     * @return The result of each job, in order.
+     * @throws Exception If the computation fails, or it was cancelled (see {@link Cancellation#check()}).
+     */
+    public double[] computeAll(Cancellation cancellation) throws Exception {
         if (tuples.isEmpty()) {
             throw new IllegalArgumentException("The tuple list cannot be empty");
         }
+        Aggregator[] aggregators = computePartial(0, tuples.size(), cancellation);
+        double[] results = new double[kinds.length];
+        for (int j = 0; j < kinds.length; j++) {
+            results[j] = aggregators[j].result(tuples.size());
+        }
+        return results;
+    }
 
-        // Selects the operation to perform
-        switch (kind) {
-            case MIN:
-                return computeMin();
-            case MAX:
-                return computeMax();
-            case AVG:
-                return computeAvg();
-            case COUNT:
-                return computeCount();
-            default:
-                throw new IllegalArgumentException("Unsupported computation type: " + kind);
+    /**
+     * Reduces the tuples with index in [from, to) into an aggregator per job, which can be merged with
+     * the aggregators of the other tuples, for example by a {@link Coordinator}. Tuples are indexed in
+     * the order in which this engine visits them, which only depends on the request.
+     *
+     * @param from         The index of the first tuple.
+     * @param to           The index after the last tuple.
+     * @param cancellation The cancellation of the request, polled while the tuples are reduced.
+     * @return The aggregator of each job, in order.
+     * @throws Exception If the computation fails, or it was cancelled (see {@link Cancellation#check()}).
+     */
+    public Aggregator[] computePartial(long from, long to, Cancellation cancellation) throws Exception {
+        this.cancellation = cancellation;
+        cancellation.check();
+        if (from < 0 || to > tuples.size() || from > to) {
+            throw new IndexOutOfBoundsException("Invalid tuple range [" + from + ", " + to + ")");
         }
+
+        // COUNT needs no evaluation, so its expressions are not even compiled
+        boolean evaluate = false;
+        for (ComputationKind kind : kinds) {
+            evaluate |= kind != ComputationKind.COUNT;
+        }
+
+        // Compiles the expressions once, with a register slot for each variable of the tuples
+        if (evaluate && program == null) {
+            program = ExpressionProgram.compile(expressions, tuples.getVariableNames(), tuples.getNegativeZeroSlots());
+        }
+        int[][] outputs = jobOutputs != null ? jobOutputs.clone()
+                : new int[][]{evaluate ? allOutputs(program) : new int[0]};
+
+        for (int j = 0; j < kinds.length; j++) {
+            Aggregators.create(kinds[j]); // Rejects the kinds that are not computed by an aggregator
+            if (kinds[j] == ComputationKind.COUNT) {
+                outputs[j] = new int[0]; // Counts the number of tuples (variable values)
+            }
+        }
+
+        Aggregator[] aggregators = evaluate && from < to ? computeValues(outputs, from, to) : newAggregators();
+        cancellation.check(); // The results are partial if the loops stopped early
+        return aggregators;
     }
 
-    // Calculates the minimum value among the expressions
-    private double computeMin() throws Exception {
-        return computeValue(Math::min, Double.MAX_VALUE);
+    // Creates an empty aggregator for each job
+    private Aggregator[] newAggregators() {
+        Aggregator[] aggregators = new Aggregator[kinds.length];
+        for (int j = 0; j < kinds.length; j++) {
+            aggregators[j] = Aggregators.create(kinds[j]);
+        }
+        return aggregators;
     }
 
-    // Calculates the maximum value among the expressions
-    private double computeMax() throws Exception {
-        return computeValue(Math::max, -Double.MAX_VALUE);
+    /**
+     * Estimates the AVG of the expressions from a uniform random sample of the tuples, drawn with
+     * replacement by their index, so the cost does not depend on the number of tuples. The running mean
+     * of the sum of the expressions at the sampled tuples is the estimate, and sampling stops as soon as
+     * the half-width of its 95% confidence interval is within the relative error of the estimate, or
+     * after the maximum number of samples. A space with no more tuples than that is averaged exactly.
+     *
+     * @param relativeError The error bound to reach, relative to the estimate.
+     * @param maxSamples    The maximum number of tuples to evaluate.
+     * @param cancellation  The cancellation of the request, polled while sampling.
+     * @return The estimate, the half-width of its confidence interval (0 if exact) and the number of
+     * tuples evaluated.
+     * @throws Exception If the computation fails, or it was cancelled (see {@link Cancellation#check()}).
+     */
+    public double[] estimateAverage(double relativeError, long maxSamples, Cancellation cancellation) throws Exception {
+        if (tuples.size() <= maxSamples) {
+            double average = new ComputationEngine(new ComputationKind[]{ComputationKind.AVG}, jobOutputs,
+                    expressions, program, tuples).computeAll(cancellation)[0];
+            return new double[]{average, 0.0, tuples.size()};
+        }
+        this.cancellation = cancellation;
+        cancellation.check();
+        if (program == null) {
+            program = ExpressionProgram.compile(expressions, tuples.getVariableNames(), tuples.getNegativeZeroSlots());
+        }
+        int[] outputs = jobOutputs != null ? jobOutputs[0] : allOutputs(program);
+        double[] registers = program.newRegisters();
+        ExpressionKernel kernel = program.getKernel();
+        SplittableRandom random = new SplittableRandom();
+
+        // Running mean and variance of the sampled values
+        Aggregators.Variance sample = new Aggregators.Variance(false);
+        while (sample.getCount() < maxSamples) {
+            if (sample.getCount() % CANCELLATION_INTERVAL == 0) {
+                cancellation.check();
+            }
+            tuples.readTuple(random.nextLong(tuples.size()), registers);
+            kernel.run(registers, 0);
+            double value = 0.0;
+            for (int output : outputs) {
+                value += program.output(registers, output);
+            }
+            sample.accumulate(value);
+
+            // A value that is not finite makes the average not finite, whatever the other values
+            if (!Double.isFinite(sample.getMean())) {
+                break;
+            }
+            if (sample.getCount() >= MIN_SAMPLES && errorBound(sample) <= relativeError * Math.abs(sample.getMean())) {
+                break;
+            }
+        }
+        return new double[]{sample.getMean(), errorBound(sample), sample.getCount()};
+    }
+
+    // Half-width of the confidence interval of the mean of the samples, infinite for a single sample
+    private static double errorBound(Aggregators.Variance sample) {
+        return CONFIDENCE_Z * Math.sqrt(sample.getSampleVariance() / sample.getCount());
+    }
+
+    private static int[] allOutputs(ExpressionProgram program) {
+        int[] outputs = new int[program.getOutputCount()];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = i;
+        }
+        return outputs;
+    }
+
+    // Generic function to reduce the values of each job with its aggregator
+    private Aggregator[] computeValues(int[][] outputs, long from, long to) {
+        // Grids are evaluated as nested loops, hoisting the instructions out of the loops they do not depend on
+        int[] loopOrder = null;
+        ExpressionProgram evaluator = program;
+        if (tuples.isGrid() && tuples.getVariableCount() > 1) {
+            loopOrder = chooseLoopOrder();
+            int[] slotLevels = new int[loopOrder.length];
+            for (int level = 0; level < loopOrder.length; level++) {
+                slotLevels[loopOrder[level]] = level;
+            }
+            evaluator = program.schedule(slotLevels);
+        }
+        if (from == 0 && to == tuples.size() && canBound(outputs)) {
+            return new BranchAndBound(evaluator, loopOrder, outputs).run();
+        }
+        Reduction reduction = new Reduction(tuples, evaluator, loopOrder, outputs);
+
+        long size = to - from;
+        long costPerTuple = program.getInstructionCount() + program.getOutputCount() + 1L;
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int parallelism = pool.getParallelism();
+
+        // Small requests are not worth splitting
+        if (parallelism <= 1 || size * costPerTuple < PARALLEL_THRESHOLD) {
+            return reduction.reduceRange(from, to);
+        }
+
+        // Adapts the chunk size to the request: a few chunks per worker, but never too small
+        long minChunk = Math.max(1, MIN_CHUNK_WORK / costPerTuple);
+        long chunk = Math.max(minChunk, size / ((long) parallelism * CHUNKS_PER_WORKER));
+        return pool.invoke(new ReduceTask(reduction, from, to, chunk));
+    }
+
+    // Returns true if the jobs are a single MIN or MAX over a grid large enough for branch and bound,
+    // whose values are sorted, so that the values of a box are bounded by the ones at its corners
+    private boolean canBound(int[][] outputs) {
+        return kinds.length == 1 && (kinds[0] == ComputationKind.MIN || kinds[0] == ComputationKind.MAX)
+                && outputs[0].length > 0 && tuples.isGrid() && tuples.size() >= BOUND_THRESHOLD
+                && tuples.hasSortedValues();
     }
 
-    // Calculates the average of the expressions
-    private double computeAvg() throws Exception {
-        double sum = computeSum(); // Sums the values
-        return sum / tuples.size(); // Returns the average
+    // Returns the variables from the outermost to the innermost loop, keeping the slot order unless
+    // another order runs fewer instructions
+    private int[] chooseLoopOrder() {
+        int count = tuples.getVariableCount();
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        if (count > MAX_ORDERED_VARIABLES) {
+            return order;
+        }
+        long[] masks = program.getVariableMasks();
+        int[] best = order.clone();
+        double[] bestCost = {loopCost(order, masks)};
+        permute(order, 0, masks, best, bestCost);
+        return best;
     }
 
-    // Counts the number of tuples (variable values)
-    private double computeCount() {
-        return tuples.size();
+    // Tries every order of the variables from position k on, keeping the cheapest one
+    private void permute(int[] order, int k, long[] masks, int[] best, double[] bestCost) {
+        if (k == order.length) {
+            double cost = loopCost(order, masks);
+            if (cost < bestCost[0]) {
+                bestCost[0] = cost;
+                System.arraycopy(order, 0, best, 0, order.length);
+            }
+            return;
+        }
+        for (int i = k; i < order.length; i++) {
+            swap(order, k, i);
+            permute(order, k + 1, masks, best, bestCost);
+            swap(order, k, i);
+        }
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+
+    // Number of instruction runs with the given loop order: an instruction runs once per iteration
+    // of the innermost loop among the variables it depends on
+    private double loopCost(int[] order, long[] masks) {
+        int[] slotLevels = new int[order.length];
+        double[] iterations = new double[order.length]; // Iterations of each loop, counting the outer ones
+        double product = 1;
+        for (int level = 0; level < order.length; level++) {
+            slotLevels[order[level]] = level;
+            product *= tuples.getValueCount(order[level]);
+            iterations[level] = product;
+        }
+
+        double cost = 0;
+        for (long mask : masks) {
+            int level = 0;
+            for (long bits = mask; bits != 0; bits &= bits - 1) {
+                level = Math.max(level, slotLevels[Long.numberOfTrailingZeros(bits)]);
+            }
+            cost += iterations[level];
+        }
+        return cost;
     }
 
-    // Sums all the values of the expressions
-    private double computeSum() throws Exception {
-        return computeValue(Double::sum, 0.0); // Sums the values
+    // The reduction of the values of the expressions into an aggregator per job
+    private class Reduction {
+        private final TupleSpace space;            // The tuples reduced: all of them, or a box of the grid
+        private final ExpressionProgram evaluator; // The program, scheduled for the loop order
+        private final int[] loopOrder;             // Order of the grid loops, null for the slot order
+        private final int[][] outputs;
+
+        Reduction(TupleSpace space, ExpressionProgram evaluator, int[] loopOrder, int[][] outputs) {
+            this.space = space;
+            this.evaluator = evaluator;
+            this.loopOrder = loopOrder;
+            this.outputs = outputs;
+        }
+
+        // Reduces the tuples with index in [from, to) into new aggregators
+        Aggregator[] reduceRange(long from, long to) {
+            if (!space.isGrid()) {
+                return reduceBlocks(from, to);
+            }
+            Aggregator[] results = newAggregators();
+            double[] registers = evaluator.newRegisters();
+            ExpressionKernel kernel = evaluator.getKernel(); // Generated bytecode for hot programs
+
+            // The values of the expressions are buffered, and added to the aggregators a block at a time
+            double[][] buffers = new double[evaluator.getOutputCount()][BUFFERED_TUPLES];
+            double[][][] jobColumns = jobColumns(buffers);
+            int buffered = 0;
+
+            // Iterates over all tuples and all expressions; the cursor writes each tuple into the variable slots
+            TupleSpace.Cursor cursor = space.cursor(from, to, loopOrder);
+            int level;
+            int countdown = CANCELLATION_INTERVAL;
+            while ((level = cursor.next(registers)) >= 0) {
+                if (--countdown == 0) {
+                    if (cancellation.isCancelled()) {
+                        break;
+                    }
+                    countdown = CANCELLATION_INTERVAL;
+                }
+                kernel.run(registers, level); // Evaluates the expressions depending on the changed variables
+                for (int i = 0; i < buffers.length; i++) {
+                    buffers[i][buffered] = evaluator.output(registers, i);
+                }
+                if (++buffered == BUFFERED_TUPLES) {
+                    accumulate(results, jobColumns, buffered);
+                    buffered = 0;
+                }
+            }
+            accumulate(results, jobColumns, buffered);
+            return results;
+        }
+
+        // Reduces the tuples with index in [from, to) a block at a time, in the same order as one at a time
+        private Aggregator[] reduceBlocks(long from, long to) {
+            Aggregator[] results = newAggregators();
+            double[][] columns = evaluator.newColumns();
+            double[][] outputColumns = new double[evaluator.getOutputCount()][];
+            for (int i = 0; i < outputColumns.length; i++) {
+                outputColumns[i] = evaluator.outputColumn(columns, i);
+            }
+            double[][][] jobColumns = jobColumns(outputColumns);
+
+            TupleSpace.Cursor cursor = space.cursor(from, to);
+            int length;
+            while (!cancellation.isCancelled() && (length = cursor.nextBlock(columns, evaluator.getBlockSize())) > 0) {
+                evaluator.runBlock(columns, length);
+                accumulate(results, jobColumns, length);
+            }
+            return results;
+        }
+
+        // Returns the columns reduced by each job, given the column of each expression
+        private double[][][] jobColumns(double[][] outputColumns) {
+            double[][][] jobColumns = new double[outputs.length][][];
+            for (int j = 0; j < outputs.length; j++) {
+                jobColumns[j] = new double[outputs[j].length][];
+                for (int i = 0; i < outputs[j].length; i++) {
+                    jobColumns[j][i] = outputColumns[outputs[j][i]];
+                }
+            }
+            return jobColumns;
+        }
+
+        // Adds the values of a block of tuples to the aggregator of each job
+        private void accumulate(Aggregator[] results, double[][][] jobColumns, int length) {
+            for (int j = 0; j < jobColumns.length; j++) {
+                if (jobColumns[j].length > 0 && length > 0) {
+                    results[j].accumulateBlock(jobColumns[j], length);
+                }
+            }
+        }
+
+        // Merges the aggregators of two consecutive ranges
+        Aggregator[] merge(Aggregator[] left, Aggregator[] right) {
+            for (int j = 0; j < left.length; j++) {
+                left[j].merge(right[j]);
+            }
+            return left;
+        }
     }
 
-    // Generic function to calculate the value based on the specified operation (min, max, sum)
-    private double computeValue(BinaryOperator<Double> operation, double initialValue) throws Exception {
-        double result = initialValue;
+    // A box of the grid, with the bounds of the values of the job over its tuples
+    private static class Box {
+        final int[] from; // Index of the first value of each variable
+        final int[] to;   // Index after the last value of each variable
+        final long size;  // Number of tuples
+        double low;       // No value of the box, unless NaN, is lower
+        double high;      // No value of the box, unless NaN, is higher
+        boolean nan;      // Some value of the box may be NaN
 
-        // Iterates over all tuples and all expressions
-        for (Map<Variable, Double> tuple : tuples) {
-            for (Node expression : expressions) {
-                double value = evaluateExpression(expression, tuple); // Evaluates the expression
-                result = operation.apply(result, value); // Applies the operation
+        Box(int[] from, int[] to) {
+            this.from = from;
+            this.to = to;
+            long product = 1;
+            for (int i = 0; i < from.length; i++) {
+                product *= to[i] - from[i];
             }
+            this.size = product;
         }
-        return result;
     }
 
-    // Evaluates an expression based on variables and their values
-    private double evaluateExpression(Node expression, Map<Variable, Double> variableValues) throws Exception {
-        // If the expression is a constant, return the value
-        if (expression instanceof Constant) {
-            return ((Constant) expression).getValue();
+    // Computes a single MIN or MAX job over the grid, scanning only the boxes that may change the result
+    private class BranchAndBound {
+        private final ExpressionProgram evaluator;
+        private final int[] loopOrder;
+        private final int[][] outputs;
+        private final boolean minimum;
+        private final AtomicLong best; // Bits of the result over the boxes scanned so far
+        private long forkSize = Long.MAX_VALUE; // Boxes larger than this are split in parallel
+
+        BranchAndBound(ExpressionProgram evaluator, int[] loopOrder, int[][] outputs) {
+            this.evaluator = evaluator;
+            this.loopOrder = loopOrder;
+            this.outputs = outputs;
+            this.minimum = kinds[0] == ComputationKind.MIN;
+            // Starts from the result of no values
+            this.best = new AtomicLong(Double.doubleToRawLongBits(Aggregators.create(kinds[0]).result(0)));
         }
-        // If it's a variable, return the associated value
-        else if (expression instanceof Variable) {
-            Variable variable = (Variable) expression;
-            Double value = variableValues.get(variable);
-            if (value == null) {
-                throw new Exception("Variable not found: " + variable.getName());
+
+        Aggregator[] run() {
+            int count = tuples.getVariableCount();
+            int[] to = new int[count];
+            for (int i = 0; i < count; i++) {
+                to[i] = tuples.getValueCount(i);
+            }
+            Box root = bound(new int[count], to);
+
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            int parallelism = pool.getParallelism();
+            if (parallelism > 1) {
+                forkSize = Math.max(LEAF_TUPLES, root.size / ((long) parallelism * CHUNKS_PER_WORKER));
             }
-            return value;
+            pool.invoke(new BoundTask(this, root));
+            Aggregator result = Aggregators.create(kinds[0]);
+            result.accumulate(current());
+            return new Aggregator[]{result};
         }
-        // If it's an operator, evaluate the two operands and apply the operator
-        else if (expression instanceof Operator) {
-            Operator op = (Operator) expression;
-            List<Node> children = op.getChildren();
-            if (children.size() != 2) {
-                throw new Exception("Operator must have two operands");
+
+        // Creates a box and bounds the values of the job over it
+        Box bound(int[] from, int[] to) {
+            Box box = new Box(from, to);
+            int registers = evaluator.getRegisterCount();
+            double[] lows = new double[registers];
+            double[] highs = new double[registers];
+            boolean[] nans = new boolean[registers];
+            for (int i = 0; i < from.length; i++) {
+                lows[i] = tuples.getValue(i, from[i]);
+                highs[i] = tuples.getValue(i, to[i] - 1);
+                nans[i] = Double.isNaN(lows[i]) || Double.isNaN(highs[i]);
             }
-            double leftValue = evaluateExpression(children.get(0), variableValues);
-            double rightValue = evaluateExpression(children.get(1), variableValues);
-            return op.getType().getFunction().apply(new double[]{leftValue, rightValue});
+            evaluator.bound(lows, highs, nans);
+
+            box.low = Double.POSITIVE_INFINITY;
+            box.high = Double.NEGATIVE_INFINITY;
+            for (int output : outputs[0]) {
+                int register = evaluator.getOutputRegister(output);
+                box.low = Math.min(box.low, lows[register]);
+                box.high = Math.max(box.high, highs[register]);
+                box.nan |= nans[register];
+            }
+            box.nan |= Double.isNaN(box.low) || Double.isNaN(box.high);
+            return box;
         }
-        // If the node type is unsupported, throw an exception
-        else {
-            throw new Exception("Unsupported node type");
+
+        // Returns true if some value of the box may change the result: a value beyond it, NaN, or a
+        // zero of the other sign, as Math.min(0.0, -0.0) is -0.0 and Math.max(-0.0, 0.0) is 0.0
+        boolean mayChange(Box box) {
+            double result = current();
+            if (Double.isNaN(result)) {
+                return false;
+            }
+            if (box.nan) {
+                return true;
+            }
+            if (minimum) {
+                return box.low < result || (box.low <= 0 && Double.doubleToRawLongBits(result) == 0L);
+            }
+            return box.high > result || (box.high >= 0 && Double.doubleToRawLongBits(result) == NEGATIVE_ZERO_BITS);
+        }
+
+        // Returns true if the more promising of two boxes is the first
+        boolean isBetter(Box first, Box second) {
+            return minimum ? first.low <= second.low : first.high >= second.high;
+        }
+
+        // Scans the tuples of a box, merging their result into the result so far
+        void scan(Box box) {
+            TupleSpace space = tuples.box(box.from, box.to);
+            double value = new Reduction(space, evaluator, loopOrder, outputs)
+                    .reduceRange(0, space.size())[0].result(space.size());
+            long bits;
+            long merged;
+            do {
+                bits = best.get();
+                double current = Double.longBitsToDouble(bits);
+                merged = Double.doubleToRawLongBits(minimum ? Math.min(current, value) : Math.max(current, value));
+            } while (merged != bits && !best.compareAndSet(bits, merged));
+        }
+
+        double current() {
+            return Double.longBitsToDouble(best.get());
+        }
+
+        boolean isCancelled() {
+            return cancellation.isCancelled();
+        }
+    }
+
+    // Fork/join task exploring a box: skipped if it cannot change the result, scanned if it is small,
+    // otherwise split in halves along its longest side, the more promising half first
+    @SuppressWarnings("serial") // Tasks are never serialized
+    private static class BoundTask extends RecursiveAction {
+        private final BranchAndBound search;
+        private final Box box;
+
+        BoundTask(BranchAndBound search, Box box) {
+            this.search = search;
+            this.box = box;
+        }
+
+        @Override
+        protected void compute() {
+            if (search.isCancelled() || !search.mayChange(box)) {
+                return;
+            }
+            if (box.size <= LEAF_TUPLES) {
+                search.scan(box);
+                return;
+            }
+
+            int widest = 0;
+            for (int i = 1; i < box.from.length; i++) {
+                if (box.to[i] - box.from[i] > box.to[widest] - box.from[widest]) {
+                    widest = i;
+                }
+            }
+            int middle = box.from[widest] + (box.to[widest] - box.from[widest]) / 2;
+            int[] leftTo = box.to.clone();
+            leftTo[widest] = middle;
+            int[] rightFrom = box.from.clone();
+            rightFrom[widest] = middle;
+            Box left = search.bound(box.from, leftTo);
+            Box right = search.bound(rightFrom, box.to);
+
+            BoundTask first = new BoundTask(search, search.isBetter(left, right) ? left : right);
+            BoundTask second = new BoundTask(search, first.box == left ? right : left);
+            if (box.size > search.forkSize) {
+                second.fork();
+                first.compute();
+                second.join();
+            } else {
+                first.compute();
+                second.compute();
+            }
+        }
+    }
+
+    // Fork/join task that splits a range of tuples in halves until it is small enough to reduce directly
+    @SuppressWarnings("serial") // Tasks are never serialized
+    private static class ReduceTask extends RecursiveTask<Aggregator[]> {
+        private final Reduction reduction;
+        private final long from;
+        private final long to;
+        private final long chunk;
+
+        ReduceTask(Reduction reduction, long from, long to, long chunk) {
+            this.reduction = reduction;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected Aggregator[] compute() {
+            if (to - from <= chunk) {
+                return reduction.reduceRange(from, to);
+            }
+            long middle = from + (to - from) / 2;
+            ReduceTask left = new ReduceTask(reduction, from, middle, chunk);
+            ReduceTask right = new ReduceTask(reduction, middle, to, chunk);
+            left.fork();
+            Aggregator[] rightResult = right.compute();
+            return reduction.merge(left.join(), rightResult);
         }
     }
 }
@@ -0,0 +1,283 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Coordinator class computes the requests of a server started with --role=coordinator on a set of
+ * worker servers. The tuples of a request are indexed (see {@link ComputationEngine#computePartial}),
+ * and their index range is split into shards, a few per worker, sent to the workers as
+ * {@value RequestProcessor#SHARD_PREFIX}{@code <from>;<to>;<request>} requests over the text protocol. A
+ * worker answers with the encoded state of the {@link Aggregator} of its shard, and the coordinator
+ * merges the states of the shards, in shard order, into the result of the request.
+ *
+ * Each worker has a single connection, on which the shards sent to it are pipelined. A shard whose
+ * worker cannot be reached, closes the connection, does not answer within the worker timeout or is
+ * too busy to admit it is sent to the next worker, up to the configured number of retries; any other
+ * error of a shard, such as an unknown variable, is the error of the request. The deadline of the
+ * request is forwarded to its shards, so the workers stop them when it passes.
+ */
+public class Coordinator {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final String BUSY_ERROR = "Server busy"; // Start of the error of a worker rejecting a shard
+
+    private final Worker[] workers;
+    private final int shardsPerWorker;
+    private final int retries;
+    private final long workerTimeoutMillis;
+    // Sends the retries, so that they are never sent by a thread completing a response
+    private final ExecutorService executor;
+    private final LongAdder shards = new LongAdder();
+    private final LongAdder retriedShards = new LongAdder();
+
+    public Coordinator(ServerConfig config) {
+        List<String> addresses = config.getWorkers();
+        this.workers = new Worker[addresses.size()];
+        for (int i = 0; i < workers.length; i++) {
+            String address = addresses.get(i);
+            int separator = address.lastIndexOf(':');
+            workers[i] = new Worker(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+        }
+        this.shardsPerWorker = config.getShardsPerWorker();
+        this.retries = config.getShardRetries();
+        this.workerTimeoutMillis = config.getWorkerTimeoutMillis();
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "coordinator-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Computes a request on the workers.
+     *
+     * @param kind         The computation kind of the request; AAVG cannot be sharded.
+     * @param request      The request, in the format "ComputationKind_ValuesKind;VariableValuesFunction;Expressions".
+     * @param size         The number of tuples of the request, at least 1.
+     * @param cancellation The cancellation of the request.
+     * @return The result.
+     * @throws Exception If a shard failed on every worker it was sent to, its request is invalid, or
+     * the request was cancelled.
+     */
+    public double compute(ComputationEngine.ComputationKind kind, String request, long size,
+                          Cancellation cancellation) throws Exception {
+        // Splits the tuples into ranges whose sizes differ by at most 1
+        int count = (int) Math.min(size, (long) workers.length * shardsPerWorker);
+        List<CompletableFuture<String>> states = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long from = i * (size / count) + Math.min(i, size % count);
+            long to = from + size / count + (i < size % count ? 1 : 0);
+            states.add(send(request, i, from, to, 0, cancellation));
+            shards.increment();
+        }
+
+        Aggregator result = Aggregators.create(kind);
+        for (CompletableFuture<String> state : states) {
+            Aggregator shard = Aggregators.create(kind);
+            shard.decode(cancellation.await(state));
+            result.merge(shard);
+        }
+        return result.result(size);
+    }
+
+    // Sends a shard to a worker, and to the next ones if it fails, completing with the encoded state
+    private CompletableFuture<String> send(String request, int index, long from, long to, int attempt,
+                                           Cancellation cancellation) {
+        Worker worker = workers[(index + attempt) % workers.length];
+        String line;
+        try {
+            line = deadlinePrefix(cancellation) + RequestProcessor.SHARD_PREFIX + from + ";" + to + ";" + request;
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<String> response = worker.send(line);
+        if (workerTimeoutMillis > 0) {
+            response = response.orTimeout(workerTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return response.handleAsync((reply, failure) -> {
+            String error;
+            if (failure != null) {
+                Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                if (cause instanceof TimeoutException) {
+                    // The worker is stuck: its other shards are retried as well
+                    worker.disconnect(new IOException("No response within " + workerTimeoutMillis + " ms"));
+                    error = "Worker " + worker + " did not answer within " + workerTimeoutMillis + " ms";
+                } else {
+                    error = "Worker " + worker + " failed: " + cause.getMessage();
+                }
+            } else {
+                // "OK;<state>;<time>" or "ERR;<message>;<time>"
+                int end = reply.lastIndexOf(';');
+                if (reply.startsWith("OK;") && end >= "OK;".length()) {
+                    return CompletableFuture.completedFuture(reply.substring("OK;".length(), end));
+                }
+                if (!reply.startsWith("ERR;") || end < "ERR;".length()) {
+                    error = "Invalid response from worker " + worker;
+                } else {
+                    error = reply.substring("ERR;".length(), end);
+                    if (!error.startsWith(BUSY_ERROR)) {
+                        // The shard fails on any worker
+                        return CompletableFuture.<String>failedFuture(new Exception(error));
+                    }
+                }
+            }
+            if (attempt >= retries || cancellation.isCancelled()) {
+                return CompletableFuture.<String>failedFuture(new Exception(error));
+            }
+            retriedShards.increment();
+            return send(request, index, from, to, attempt + 1, cancellation);
+        }, executor).thenCompose(next -> next);
+    }
+
+    // Returns the prefix giving a shard the time left to the request, empty if it has no deadline
+    private static String deadlinePrefix(Cancellation cancellation) throws Exception {
+        long remainingNanos = cancellation.getRemainingNanos();
+        if (remainingNanos == Long.MAX_VALUE) {
+            return "";
+        }
+        if (remainingNanos == 0) {
+            throw new Exception(Cancellation.TIMEOUT_MESSAGE);
+        }
+        // Rounded up, as a deadline of 0 means none
+        return RequestProcessor.DEADLINE_PREFIX + (TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1) + ":";
+    }
+
+    // Returns the number of shards sent to the workers, retries excluded
+    public long getShards() {
+        return shards.sum();
+    }
+
+    // Returns the number of times a shard was sent again after a failure
+    public long getRetriedShards() {
+        return retriedShards.sum();
+    }
+
+    // A worker, with the connection on which its shards are pipelined; it is opened when needed
+    private static class Worker {
+        private final String host;
+        private final int port;
+        private Socket socket; // Null when not connected, guarded by this
+        private Writer out;    // Guarded by this
+        private final Deque<CompletableFuture<String>> pending = new ArrayDeque<>(); // Shards sent, in order, guarded by this
+
+        Worker(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        // Sends a request line, completing with the response line
+        CompletableFuture<String> send(String line) {
+            CompletableFuture<String> response = new CompletableFuture<>();
+            IOException failure = null;
+            synchronized (this) {
+                try {
+                    if (socket == null) {
+                        connect();
+                    }
+                    pending.add(response);
+                    out.write(line);
+                    out.write('\n');
+                    out.flush();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                disconnect(failure);
+                response.completeExceptionally(failure);
+            }
+            return response;
+        }
+
+        private void connect() throws IOException {
+            Socket connection = new Socket();
+            try {
+                connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                connection.setTcpNoDelay(true);
+                out = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8));
+                BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+                Thread reader = new Thread(() -> read(connection, in), "worker-" + this);
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+            socket = connection;
+        }
+
+        // Completes the shards of a connection with the responses, which arrive in order
+        private void read(Socket connection, BufferedReader in) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    CompletableFuture<String> response;
+                    synchronized (this) {
+                        if (socket != connection) {
+                            return;
+                        }
+                        response = pending.poll();
+                    }
+                    if (response != null) {
+                        response.complete(line);
+                    }
+                }
+                throw new EOFException("Connection closed by the worker");
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (socket != connection) {
+                        return;
+                    }
+                }
+                disconnect(e);
+            }
+        }
+
+        // Closes the connection and fails the shards waiting for a response; the next shard reconnects
+        void disconnect(IOException cause) {
+            List<CompletableFuture<String>> failed;
+            synchronized (this) {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Already closed
+                    }
+                    socket = null;
+                }
+                failed = new ArrayList<>(pending);
+                pending.clear();
+            }
+            // Completed outside the lock, as completing runs the callbacks of the shards
+            for (CompletableFuture<String> response : failed) {
+                response.completeExceptionally(cause);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
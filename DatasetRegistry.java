@@ -0,0 +1,228 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The DatasetRegistry class keeps the datasets loaded by the clients: named sets of columns of the
+ * same length, read from files of the dataset directory of the server. A request uses a column as
+ * the values of a variable with the definition {@code name:@dataset.column}.
+ *
+ * Two file formats are supported:
+ * <ul>
+ *   <li>binary files, holding the columns one after the other as little-endian 64-bit doubles; the
+ *   names of the columns are given when loading, and the file is memory-mapped, so its values are
+ *   read from the page cache without being copied;</li>
+ *   <li>CSV files (with extension ".csv"), whose first line holds the names of the columns and the
+ *   other lines their values, separated by commas; they are parsed into direct buffers.</li>
+ * </ul>
+ * In both cases the values are kept off the heap. Loading a dataset with the name of another one
+ * replaces it, and the requests already using the old columns keep reading them.
+ */
+public class DatasetRegistry {
+
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*"); // Names of datasets and columns
+    private static final int INITIAL_CSV_ROWS = 1024;
+
+    private final Path directory; // Directory the files are loaded from, null if datasets are disabled
+    private final Map<String, Map<String, Column>> datasets = new ConcurrentHashMap<>(); // Columns of each dataset, by name
+
+    public DatasetRegistry(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Loads a file of the dataset directory as a dataset.
+     *
+     * @param name    The name of the dataset.
+     * @param file    The path of the file, relative to the dataset directory.
+     * @param columns The names of the columns of a binary file, separated by commas; ignored for CSV files.
+     * @return The number of rows of the dataset.
+     * @throws Exception If datasets are disabled, or the name, the file or its content is invalid.
+     */
+    public int load(String name, String file, String columns) throws Exception {
+        checkName(name);
+        Path path = resolve(file);
+        Map<String, Column> dataset;
+        try {
+            dataset = path.getFileName().toString().toLowerCase().endsWith(".csv")
+                    ? readCsv(path)
+                    : readBinary(path, columns == null ? new String[0] : columns.split(",", -1));
+        } catch (NoSuchFileException e) {
+            throw new Exception("Dataset file not found: " + file);
+        } catch (IOException e) {
+            throw new Exception("Cannot read dataset file " + file + ": " + e.getMessage());
+        }
+        datasets.put(name, Collections.unmodifiableMap(dataset));
+        return dataset.values().iterator().next().size();
+    }
+
+    // Removes a dataset, returning false if there is none with that name
+    public boolean drop(String name) {
+        return datasets.remove(name) != null;
+    }
+
+    // Returns the number of datasets loaded
+    public int size() {
+        return datasets.size();
+    }
+
+    /**
+     * Returns a column of a dataset.
+     *
+     * @param reference The column, as "dataset.column".
+     * @return The column.
+     * @throws Exception If there is no such dataset or column.
+     */
+    public Column getColumn(String reference) throws Exception {
+        int separator = reference.indexOf('.');
+        if (separator < 0) {
+            throw new Exception("Invalid dataset column: " + reference);
+        }
+        Map<String, Column> dataset = datasets.get(reference.substring(0, separator));
+        if (dataset == null) {
+            throw new Exception("Unknown dataset: " + reference.substring(0, separator));
+        }
+        Column column = dataset.get(reference.substring(separator + 1));
+        if (column == null) {
+            throw new Exception("Unknown dataset column: " + reference);
+        }
+        return column;
+    }
+
+    /**
+     * Returns the path of a file of the dataset directory.
+     *
+     * @param file The path of the file, relative to the dataset directory.
+     * @return The path.
+     * @throws Exception If datasets are disabled, or the file is outside the dataset directory.
+     */
+    Path resolve(String file) throws Exception {
+        if (directory == null) {
+            throw new Exception("Datasets are disabled: start the server with --dataset-dir");
+        }
+        Path path = directory.resolve(file).normalize();
+        if (!path.startsWith(directory) || path.equals(directory)) {
+            throw new Exception("Dataset file outside the dataset directory: " + file);
+        }
+        return path;
+    }
+
+    private static void checkName(String name) throws Exception {
+        if (!NAME.matcher(name).matches()) {
+            throw new Exception("Invalid dataset name: " + name);
+        }
+    }
+
+    // Checks the names of the columns of a dataset, returning them trimmed
+    private static String[] checkColumns(String[] columns) throws Exception {
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            names[i] = columns[i].trim();
+            if (!NAME.matcher(names[i]).matches()) {
+                throw new Exception("Invalid dataset column name: " + columns[i]);
+            }
+            for (int j = 0; j < i; j++) {
+                if (names[j].equals(names[i])) {
+                    throw new Exception("Duplicate dataset column: " + names[i]);
+                }
+            }
+        }
+        return names;
+    }
+
+    // Maps the columns of a binary file, each as its own region of the file
+    private static Map<String, Column> readBinary(Path path, String[] columns) throws Exception {
+        if (columns.length == 0) {
+            throw new Exception("The columns of a binary dataset must be given");
+        }
+        String[] names = checkColumns(columns);
+        Map<String, Column> dataset = new LinkedHashMap<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long rowBytes = (long) Double.BYTES * names.length;
+            if (channel.size() == 0 || channel.size() % rowBytes != 0) {
+                throw new Exception("The size of a binary dataset must be a multiple of " + rowBytes + " bytes");
+            }
+            long columnBytes = channel.size() / names.length;
+            if (columnBytes > Integer.MAX_VALUE) {
+                throw new Exception("Too many rows in dataset file: " + path.getFileName());
+            }
+            // The mappings stay valid once the channel is closed, until the buffers are garbage collected
+            for (int i = 0; i < names.length; i++) {
+                DoubleBuffer values = channel.map(FileChannel.MapMode.READ_ONLY, i * columnBytes, columnBytes)
+                        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                dataset.put(names[i], new BufferColumn(values));
+            }
+        }
+        return dataset;
+    }
+
+    // Parses the values of a CSV file into a direct buffer per column, doubling them as they fill up
+    private static Map<String, Column> readCsv(Path path) throws Exception {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null) {
+                throw new Exception("Empty dataset file: " + path.getFileName());
+            }
+            String[] names = checkColumns(header.split(",", -1));
+            DoubleBuffer[] values = new DoubleBuffer[names.length];
+            for (int i = 0; i < names.length; i++) {
+                values[i] = allocate(INITIAL_CSV_ROWS);
+            }
+
+            String line;
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                if (fields.length != names.length) {
+                    throw new Exception("Wrong number of values at line " + lineNumber + " of dataset file");
+                }
+                if (!values[0].hasRemaining()) {
+                    if (values[0].capacity() == Integer.MAX_VALUE / Double.BYTES) {
+                        throw new Exception("Too many rows in dataset file: " + path.getFileName());
+                    }
+                    int capacity = (int) Math.min(2L * values[0].capacity(), Integer.MAX_VALUE / Double.BYTES);
+                    for (int i = 0; i < names.length; i++) {
+                        values[i] = allocate(capacity).put(values[i].flip());
+                    }
+                }
+                for (int i = 0; i < names.length; i++) {
+                    try {
+                        values[i].put(Double.parseDouble(fields[i]));
+                    } catch (NumberFormatException e) {
+                        throw new Exception("Invalid value at line " + lineNumber + " of dataset file: " + fields[i]);
+                    }
+                }
+            }
+            if (values[0].position() == 0) {
+                throw new Exception("Empty dataset file: " + path.getFileName());
+            }
+
+            Map<String, Column> dataset = new LinkedHashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                dataset.put(names[i], new BufferColumn(values[i].flip()));
+            }
+            return dataset;
+        }
+    }
+
+    private static DoubleBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+}
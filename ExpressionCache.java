@@ -0,0 +1,95 @@
+import it.units.project.expression.Node;
+import it.units.project.expression.Parser;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ExpressionCache class keeps the expressions received by the server in parsed and compiled form,
+ * so that the same expressions sent again (by any client) are neither parsed nor compiled twice.
+ *
+ * Parsed expressions are cached by their text without spaces. Compiled programs depend on the whole
+ * list of expressions of a request, on the order of its variables and on which of them may be -0.0,
+ * so they are cached separately.
+ * A program requested more than a threshold number of times is compiled to JVM bytecode; the generated
+ * classes are unloaded once their programs are evicted, so the cache also bounds their number.
+ */
+public class ExpressionCache {
+
+    public static final int DEFAULT_EXPRESSION_CAPACITY = 4096;
+    public static final int DEFAULT_PROGRAM_CAPACITY = 1024;
+    public static final int DEFAULT_JIT_THRESHOLD = 16;
+
+    private final LruCache<String, Node> expressions;
+    private final LruCache<String, ExpressionProgram> programs;
+    private final int jitThreshold; // Requests using a program before it is compiled to bytecode, 0 disables it
+    private final LongAdder compiledPrograms = new LongAdder();
+
+    public ExpressionCache() {
+        this(DEFAULT_EXPRESSION_CAPACITY, DEFAULT_PROGRAM_CAPACITY, DEFAULT_JIT_THRESHOLD);
+    }
+
+    public ExpressionCache(int expressionCapacity, int programCapacity, int jitThreshold) {
+        this.expressions = new LruCache<>(expressionCapacity);
+        this.programs = new LruCache<>(programCapacity);
+        this.jitThreshold = jitThreshold;
+    }
+
+    // Normalizes the text of an expression in the same way the Parser does
+    public static String normalize(String expression) {
+        return expression.replace(" ", "");
+    }
+
+    /**
+     * Returns the syntax tree of an expression, parsing it only if it is not cached.
+     *
+     * @param expression The text of the expression.
+     * @return The parsed expression.
+     * @throws Exception If the expression cannot be parsed.
+     */
+    public Node parse(String expression) throws Exception {
+        return expressions.get(normalize(expression), text -> new Parser(text).parse());
+    }
+
+    /**
+     * Returns the program evaluating the expressions with the given variable slots, compiling it
+     * only if it is not cached.
+     *
+     * @param expressionsText The normalized text of the expressions, identifying them in the cache.
+     * @param nodes           The parsed expressions.
+     * @param variableNames   The names of the variables, in slot order.
+     * @param negativeZeros   Whether the values of each variable may include -0.0.
+     * @return The compiled program.
+     * @throws Exception If the expressions cannot be compiled.
+     */
+    public ExpressionProgram compile(String expressionsText, List<Node> nodes, String[] variableNames,
+                                     boolean[] negativeZeros) throws Exception {
+        StringBuilder key = new StringBuilder(expressionsText).append(';').append(String.join(",", variableNames));
+        key.append(';');
+        for (boolean negativeZero : negativeZeros) {
+            key.append(negativeZero ? '1' : '0');
+        }
+        ExpressionProgram program = programs.get(key.toString(),
+                k -> ExpressionProgram.compile(nodes, variableNames, negativeZeros));
+        if (jitThreshold > 0 && program.recordUse() == jitThreshold) {
+            program.compileKernel();
+            if (program.isCompiled()) {
+                compiledPrograms.increment();
+            }
+        }
+        return program;
+    }
+
+    public LruCache<String, Node> getExpressions() {
+        return expressions;
+    }
+
+    public LruCache<String, ExpressionProgram> getPrograms() {
+        return programs;
+    }
+
+    // Returns the number of programs compiled to bytecode
+    public long getCompiledPrograms() {
+        return compiledPrograms.sum();
+    }
+}
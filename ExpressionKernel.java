@@ -0,0 +1,15 @@
+/**
+ * The ExpressionKernel interface evaluates the instructions of an {@link ExpressionProgram} on a
+ * register file. It is implemented by the program itself, which interprets its instructions, and by
+ * the classes generated by {@link KernelCompiler} for programs used often.
+ */
+public interface ExpressionKernel {
+
+    /**
+     * Runs the instructions of the given loop level and of the inner ones on the register file.
+     *
+     * @param registers A register file obtained from {@link ExpressionProgram#newRegisters()}.
+     * @param level     The outermost loop level whose variable changed since the previous run.
+     */
+    void run(double[] registers, int level);
+}
@@ -0,0 +1,705 @@
+import it.units.project.expression.Constant;
+import it.units.project.expression.Node;
+import it.units.project.expression.Operator;
+import it.units.project.expression.Variable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ExpressionProgram class is the compiled form of a list of expressions.
+ * Each {@link Node} tree is flattened once into a sequence of binary instructions working on a
+ * primitive register file: the first registers hold the variable values (one slot per variable),
+ * followed by the constants and by one register for the result of each instruction.
+ * Evaluating the program for a tuple only reads and writes doubles, so it allocates nothing.
+ * The program can also be evaluated on a block of tuples at once, with a column of values per
+ * register and a tight loop per instruction, which the JIT compiler can vectorize.
+ *
+ * The expressions are optimized while they are flattened, keeping the IEEE 754 results of the
+ * original trees bit for bit (NaN, infinities and the sign of zero included):
+ * <ul>
+ *   <li>operations on constants are folded into a constant, computed as they would be for a tuple;</li>
+ *   <li>the exact identities {@code x*1}, {@code 1*x}, {@code x/1}, {@code x^1}, {@code x-0} and
+ *   {@code x+0} (when x cannot be -0.0) become {@code x}, and {@code x^0} becomes 1; identities that
+ *   do not hold for NaN or infinity, such as {@code x*0} or {@code x-x}, are not applied;</li>
+ *   <li>equal subexpressions, within an expression or across the expressions of the list, are computed
+ *   once: each instruction is looked up by operation and operands before being added, with the
+ *   operands of + and * in a canonical order.</li>
+ * </ul>
+ *
+ * Programs used by many requests can be compiled to JVM bytecode by {@link KernelCompiler}
+ * (tiered compilation); {@link #getKernel()} then returns the generated code instead of the program.
+ *
+ * The values of the program over a box of tuples can be bounded with interval arithmetic, see
+ * {@link #bound(double[], double[], boolean[])}.
+ */
+public class ExpressionProgram implements ExpressionKernel {
+
+    // Maximum number of tuples of a block, and maximum number of values of all the columns of a block
+    private static final int MAX_BLOCK_SIZE = 1024;
+    private static final int MAX_BLOCK_VALUES = 1 << 18;
+
+    private final int variableCount;          // Number of variable slots at the start of the register file
+    private final double[] initialRegisters;  // Register file template with the constants already loaded
+    private final Operator.Type[] operations; // Operation of each instruction
+    private final int[] leftOperands;         // Register of the left operand of each instruction
+    private final int[] rightOperands;        // Register of the right operand of each instruction
+    private final int[] targets;              // Register written by each instruction
+    private final int[] outputs;              // Register holding the result of each expression
+    private final int[] levelStarts;          // First instruction of each loop level, see schedule()
+    private final Map<String, ExpressionProgram> schedules = new ConcurrentHashMap<>(); // Scheduled programs by loop levels
+    private final AtomicInteger uses = new AtomicInteger(); // Requests that used the program
+    private volatile ExpressionKernel kernel = this; // Code running the instructions, generated once the program is hot
+    private volatile boolean hot = false;           // Compilation to bytecode was requested
+
+    private ExpressionProgram(int variableCount, double[] initialRegisters, Operator.Type[] operations,
+                              int[] leftOperands, int[] rightOperands, int[] targets, int[] outputs,
+                              int[] levelStarts) {
+        this.variableCount = variableCount;
+        this.initialRegisters = initialRegisters;
+        this.operations = operations;
+        this.leftOperands = leftOperands;
+        this.rightOperands = rightOperands;
+        this.targets = targets;
+        this.outputs = outputs;
+        this.levelStarts = levelStarts;
+    }
+
+    /**
+     * Compiles the expressions into a program whose variable slots follow the order of the given names.
+     *
+     * @param expressions   The parsed expressions to compile.
+     * @param variableNames The names of the variables; the value of variableNames[i] is read from register i.
+     * @param negativeZeros Whether the values of each variable may include -0.0.
+     * @return The compiled program.
+     * @throws Exception If an expression uses an unknown variable or an unsupported node.
+     */
+    public static ExpressionProgram compile(List<Node> expressions, String[] variableNames,
+                                            boolean[] negativeZeros) throws Exception {
+        Builder builder = new Builder(variableNames, negativeZeros);
+        int[] outputs = new int[expressions.size()];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = builder.emit(expressions.get(i));
+        }
+        return builder.build(outputs);
+    }
+
+    // Returns a new register file ready to be filled with the variable values
+    public double[] newRegisters() {
+        return initialRegisters.clone();
+    }
+
+    // Returns the number of tuples of a block, smaller for programs with many registers
+    public int getBlockSize() {
+        return Math.max(16, Math.min(MAX_BLOCK_SIZE, MAX_BLOCK_VALUES / Math.max(1, initialRegisters.length)));
+    }
+
+    // Returns new columns for evaluating blocks of tuples, one per register, with the constants already filled
+    public double[][] newColumns() {
+        int blockSize = getBlockSize();
+        double[][] columns = new double[initialRegisters.length][];
+        for (int register = 0; register < columns.length; register++) {
+            columns[register] = new double[blockSize];
+            if (register >= variableCount) {
+                Arrays.fill(columns[register], initialRegisters[register]);
+            }
+        }
+        return columns;
+    }
+
+    // Returns the column holding the values of the i-th expression after the program has been run on a block
+    public double[] outputColumn(double[][] columns, int i) {
+        return columns[outputs[i]];
+    }
+
+    // Returns the number of variable slots
+    public int getVariableCount() {
+        return variableCount;
+    }
+
+    // Returns the number of compiled expressions
+    public int getOutputCount() {
+        return outputs.length;
+    }
+
+    // Returns the number of instructions executed for each tuple
+    public int getInstructionCount() {
+        return operations.length;
+    }
+
+    // Returns the number of registers, for the arrays of bound()
+    public int getRegisterCount() {
+        return initialRegisters.length;
+    }
+
+    // Returns the register holding the value of the i-th expression
+    int getOutputRegister(int i) {
+        return outputs[i];
+    }
+
+    /**
+     * Bounds the values of the registers when each variable takes any value of an interval.
+     * On return, the value computed in register r for any tuple of the intervals is either NaN or
+     * between lows[r] and highs[r], and it can only be NaN if nans[r] is set.
+     *
+     * The bounds are computed on the endpoints of the intervals with the same floating-point operations
+     * used for the tuples. Rounding is monotone, and so is Math.pow where the exact power is (it is
+     * semi-monotonic), so the values computed for the tuples cannot fall outside bounds computed on the
+     * endpoints wherever the exact operation is monotone in each operand; elsewhere (a divisor
+     * interval containing 0, for example) the bounds are infinite and the value may be NaN.
+     *
+     * @param lows  The lowest value of each variable slot; filled with the lowest value of each register.
+     * @param highs The highest value of each variable slot; filled with the highest value of each register.
+     * @param nans  Whether each variable slot may be NaN; filled for each register.
+     */
+    public void bound(double[] lows, double[] highs, boolean[] nans) {
+        for (int register = variableCount; register < initialRegisters.length; register++) {
+            lows[register] = initialRegisters[register];
+            highs[register] = initialRegisters[register];
+            nans[register] = Double.isNaN(initialRegisters[register]);
+        }
+        for (int i = 0; i < operations.length; i++) {
+            boundOperation(operations[i], leftOperands[i], rightOperands[i], targets[i], lows, highs, nans);
+        }
+    }
+
+    // Bounds the result of an instruction from the bounds of its operands
+    private static void boundOperation(Operator.Type operation, int left, int right, int target,
+                                       double[] lows, double[] highs, boolean[] nans) {
+        double leftLow = lows[left];
+        double leftHigh = highs[left];
+        double rightLow = lows[right];
+        double rightHigh = highs[right];
+        boolean nan = nans[left] || nans[right];
+        double low = Double.NEGATIVE_INFINITY;
+        double high = Double.POSITIVE_INFINITY;
+        if (!nan) {
+            switch (operation) {
+                case SUM:
+                    // inf + -inf is NaN
+                    nan = (leftHigh == Double.POSITIVE_INFINITY && rightLow == Double.NEGATIVE_INFINITY)
+                            || (leftLow == Double.NEGATIVE_INFINITY && rightHigh == Double.POSITIVE_INFINITY);
+                    low = leftLow + rightLow;
+                    high = leftHigh + rightHigh;
+                    break;
+                case SUBTRACTION:
+                    // inf - inf is NaN
+                    nan = (leftHigh == Double.POSITIVE_INFINITY && rightHigh == Double.POSITIVE_INFINITY)
+                            || (leftLow == Double.NEGATIVE_INFINITY && rightLow == Double.NEGATIVE_INFINITY);
+                    low = leftLow - rightHigh;
+                    high = leftHigh - rightLow;
+                    break;
+                case MULTIPLICATION:
+                    // 0 * inf is NaN; otherwise the product is monotone in each operand, so the extremes are at the corners
+                    nan = (containsZero(leftLow, leftHigh) && isUnbounded(rightLow, rightHigh))
+                            || (containsZero(rightLow, rightHigh) && isUnbounded(leftLow, leftHigh));
+                    double a = leftLow * rightLow;
+                    double b = leftLow * rightHigh;
+                    double c = leftHigh * rightLow;
+                    double d = leftHigh * rightHigh;
+                    low = Math.min(Math.min(a, b), Math.min(c, d));
+                    high = Math.max(Math.max(a, b), Math.max(c, d));
+                    break;
+                case DIVISION:
+                    // x / 0 is infinite or NaN and inf / inf is NaN; otherwise the extremes are at the corners
+                    nan = containsZero(rightLow, rightHigh)
+                            || (isUnbounded(leftLow, leftHigh) && isUnbounded(rightLow, rightHigh));
+                    a = leftLow / rightLow;
+                    b = leftLow / rightHigh;
+                    c = leftHigh / rightLow;
+                    d = leftHigh / rightHigh;
+                    low = Math.min(Math.min(a, b), Math.min(c, d));
+                    high = Math.max(Math.max(a, b), Math.max(c, d));
+                    break;
+                case POWER:
+                    if (rightLow == rightHigh && rightLow == Math.rint(rightLow) && !Double.isInfinite(rightLow)) {
+                        // Integer exponent: x^n is |x|^n or -|x|^n for negative x, monotone on each side of 0
+                        a = Math.pow(leftLow, rightLow);
+                        b = Math.pow(leftHigh, rightLow);
+                        low = Math.min(a, b);
+                        high = Math.max(a, b);
+                        if (containsZero(leftLow, leftHigh) && rightLow > 0) {
+                            low = Math.min(low, 0.0);
+                            high = Math.max(high, 0.0);
+                        } else if (containsZero(leftLow, leftHigh) && rightLow < 0) {
+                            low = Double.NEGATIVE_INFINITY;
+                            high = Double.POSITIVE_INFINITY;
+                        }
+                    } else if (leftLow > 0 && !isUnbounded(rightLow, rightHigh)) {
+                        // Positive base: x^y is monotone in x for a fixed y, and in y for a fixed x
+                        a = Math.pow(leftLow, rightLow);
+                        b = Math.pow(leftLow, rightHigh);
+                        c = Math.pow(leftHigh, rightLow);
+                        d = Math.pow(leftHigh, rightHigh);
+                        low = Math.min(Math.min(a, b), Math.min(c, d));
+                        high = Math.max(Math.max(a, b), Math.max(c, d));
+                    } else {
+                        nan = true; // Negative bases with fractional exponents, 1^inf, ...
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported operator: " + operation);
+            }
+        }
+        if (nan) {
+            low = Double.NEGATIVE_INFINITY;
+            high = Double.POSITIVE_INFINITY;
+        }
+        lows[target] = low;
+        highs[target] = high;
+        nans[target] = nan;
+    }
+
+    private static boolean containsZero(double low, double high) {
+        return low <= 0 && high >= 0;
+    }
+
+    private static boolean isUnbounded(double low, double high) {
+        return low == Double.NEGATIVE_INFINITY || high == Double.POSITIVE_INFINITY;
+    }
+
+    // Returns the value of the i-th expression after the program has been run on the registers
+    public double output(double[] registers, int i) {
+        return registers[outputs[i]];
+    }
+
+    /**
+     * Runs all the instructions on the register file.
+     * The variable slots must already contain the values of the current tuple.
+     *
+     * @param registers A register file obtained from {@link #newRegisters()}.
+     */
+    public void run(double[] registers) {
+        run(registers, 0);
+    }
+
+    /**
+     * Runs the instructions of the given loop level and of the inner ones. In a program returned by
+     * {@link #schedule(int[])} the instructions of the outer levels only depend on variables that did
+     * not change, so their registers still hold the right values; in other programs every level
+     * starts at the first instruction.
+     *
+     * @param registers A register file obtained from {@link #newRegisters()}.
+     * @param level     The outermost loop level whose variable changed since the previous run.
+     */
+    @Override
+    public void run(double[] registers, int level) {
+        for (int i = levelStarts[level]; i < operations.length; i++) {
+            double left = registers[leftOperands[i]];
+            double right = registers[rightOperands[i]];
+            registers[targets[i]] = apply(operations[i], left, right);
+        }
+    }
+
+    /**
+     * Runs all the instructions on a block of tuples, one instruction at a time over the whole block.
+     * The columns of the variable slots must already contain the values of the tuples.
+     *
+     * @param columns Columns obtained from {@link #newColumns()}.
+     * @param length  The number of tuples of the block.
+     */
+    public void runBlock(double[][] columns, int length) {
+        for (int i = 0; i < operations.length; i++) {
+            double[] left = columns[leftOperands[i]];
+            double[] right = columns[rightOperands[i]];
+            double[] target = columns[targets[i]];
+            switch (operations[i]) {
+                case SUM:
+                    for (int k = 0; k < length; k++) {
+                        target[k] = left[k] + right[k];
+                    }
+                    break;
+                case SUBTRACTION:
+                    for (int k = 0; k < length; k++) {
+                        target[k] = left[k] - right[k];
+                    }
+                    break;
+                case MULTIPLICATION:
+                    for (int k = 0; k < length; k++) {
+                        target[k] = left[k] * right[k];
+                    }
+                    break;
+                case DIVISION:
+                    for (int k = 0; k < length; k++) {
+                        target[k] = left[k] / right[k];
+                    }
+                    break;
+                case POWER:
+                    for (int k = 0; k < length; k++) {
+                        target[k] = Math.pow(left[k], right[k]);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported operator: " + operations[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the program with its instructions reordered for nested loops over the variables
+     * (loop-invariant hoisting). The level of an instruction is the innermost loop level of the
+     * variables it depends on; instructions are stably sorted by level, which keeps every operand
+     * computed before its use, so that when a variable changes only the instructions of its level
+     * and of the inner ones run again.
+     *
+     * @param slotLevels The loop level of each variable slot, 0 being the outermost loop.
+     * @return The scheduled program, sharing the registers layout of this one.
+     */
+    public ExpressionProgram schedule(int[] slotLevels) {
+        // The schedules are kept, so that the same loop order is scheduled (and compiled) once
+        ExpressionProgram scheduled = schedules.computeIfAbsent(Arrays.toString(slotLevels), key -> buildSchedule(slotLevels));
+        // Checked once the schedule is in the map: compileKernel() sets hot before compiling the schedules
+        // it finds there, so a schedule added meanwhile is compiled either here or there, and only once,
+        // as compileKernel() holds the lock of the schedule while checking whether it is compiled
+        if (hot && !scheduled.hot) {
+            scheduled.compileKernel();
+        }
+        return scheduled;
+    }
+
+    private ExpressionProgram buildSchedule(int[] slotLevels) {
+        int count = operations.length;
+        int levelCount = Math.max(1, variableCount);
+        int[] registerLevels = new int[initialRegisters.length]; // Constants are available at level 0
+        System.arraycopy(slotLevels, 0, registerLevels, 0, variableCount);
+        int[] instructionLevels = new int[count];
+        int[] levelStarts = new int[levelCount];
+        for (int i = 0; i < count; i++) {
+            int level = Math.max(registerLevels[leftOperands[i]], registerLevels[rightOperands[i]]);
+            registerLevels[targets[i]] = level;
+            instructionLevels[i] = level;
+            for (int next = level + 1; next < levelCount; next++) {
+                levelStarts[next]++;
+            }
+        }
+
+        // Counting sort of the instructions by level, stable
+        int[] positions = levelStarts.clone();
+        Operator.Type[] sortedOperations = new Operator.Type[count];
+        int[] sortedLeft = new int[count];
+        int[] sortedRight = new int[count];
+        int[] sortedTargets = new int[count];
+        for (int i = 0; i < count; i++) {
+            int position = positions[instructionLevels[i]]++;
+            sortedOperations[position] = operations[i];
+            sortedLeft[position] = leftOperands[i];
+            sortedRight[position] = rightOperands[i];
+            sortedTargets[position] = targets[i];
+        }
+        return new ExpressionProgram(variableCount, initialRegisters, sortedOperations,
+                sortedLeft, sortedRight, sortedTargets, outputs, levelStarts);
+    }
+
+    // Counts a request using the program, and returns the number of requests so far
+    public int recordUse() {
+        return uses.incrementAndGet();
+    }
+
+    /**
+     * Compiles the program, and the schedules derived from it, to JVM bytecode. Programs with too many
+     * instructions for the JIT compiler, or whose compilation fails, keep being interpreted.
+     */
+    public synchronized void compileKernel() {
+        hot = true;
+        if (kernel == this && operations.length <= KernelCompiler.MAX_INSTRUCTIONS) {
+            try {
+                int constantEnd = initialRegisters.length - operations.length;
+                kernel = KernelCompiler.compile(operations, leftOperands, rightOperands, targets,
+                        initialRegisters, variableCount, constantEnd, levelStarts);
+            } catch (Exception | LinkageError e) {
+                System.err.println("Cannot compile expressions to bytecode: " + e);
+            }
+        }
+        for (ExpressionProgram scheduled : schedules.values()) {
+            scheduled.compileKernel();
+        }
+    }
+
+    // Returns the generated code running the instructions, or the program itself if it is not compiled
+    public ExpressionKernel getKernel() {
+        return kernel;
+    }
+
+    // Returns true if the program runs as generated bytecode
+    public boolean isCompiled() {
+        return kernel != this;
+    }
+
+    // Returns, for each instruction, the set of variable slots its value depends on, as a bit mask
+    // (only meaningful with at most 64 variables)
+    long[] getVariableMasks() {
+        long[] registerMasks = new long[initialRegisters.length];
+        for (int slot = 0; slot < variableCount && slot < Long.SIZE; slot++) {
+            registerMasks[slot] = 1L << slot;
+        }
+        long[] masks = new long[operations.length];
+        for (int i = 0; i < operations.length; i++) {
+            masks[i] = registerMasks[leftOperands[i]] | registerMasks[rightOperands[i]];
+            registerMasks[targets[i]] = masks[i];
+        }
+        return masks;
+    }
+
+    // Applies a binary operation on primitive values, without going through Operator.Type.getFunction()
+    static double apply(Operator.Type operation, double left, double right) {
+        switch (operation) {
+            case SUM:
+                return left + right;
+            case SUBTRACTION:
+                return left - right;
+            case MULTIPLICATION:
+                return left * right;
+            case DIVISION:
+                return left / right;
+            case POWER:
+                return Math.pow(left, right);
+            default:
+                throw new IllegalArgumentException("Unsupported operator: " + operation);
+        }
+    }
+
+    // Collects registers and instructions while walking the expression trees
+    private static class Builder {
+        private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0);
+
+        private final Map<String, Integer> variableSlots = new HashMap<>();
+        private final int variableCount;
+        private final boolean[] slotNegativeZeros; // Whether each variable slot may hold -0.0
+        private final List<Double> constants = new ArrayList<>();
+        private final Map<Long, Integer> constantRegisters = new HashMap<>();        // Register of each distinct constant, by its bits
+        private final Map<List<Integer>, Integer> instructionRegisters = new HashMap<>(); // Register of each distinct instruction
+        private final List<Operator.Type> operations = new ArrayList<>();
+        private final List<int[]> operands = new ArrayList<>();
+        private final List<Boolean> negativeZeros = new ArrayList<>(); // Whether each instruction may produce -0.0
+        private int[] constantIndexes; // Index of each constant among the used ones, set by build()
+        private int usedConstants;     // Number of constants still used, set by build()
+
+        Builder(String[] variableNames, boolean[] slotNegativeZeros) {
+            this.variableCount = variableNames.length;
+            this.slotNegativeZeros = slotNegativeZeros;
+            for (int i = 0; i < variableNames.length; i++) {
+                variableSlots.put(variableNames[i], i);
+            }
+        }
+
+        // Emits the instructions of a node and returns the register holding its value.
+        // Constant and instruction registers are numbered provisionally and fixed in build().
+        int emit(Node node) throws Exception {
+            if (node instanceof Constant) {
+                return constant(((Constant) node).getValue());
+            } else if (node instanceof Variable) {
+                Variable variable = (Variable) node;
+                Integer slot = variableSlots.get(variable.getName());
+                if (slot == null) {
+                    throw new Exception("Variable not found: " + variable.getName());
+                }
+                return slot;
+            } else if (node instanceof Operator) {
+                Operator op = (Operator) node;
+                List<Node> children = op.getChildren();
+                if (children.size() != 2) {
+                    throw new Exception("Operator must have two operands");
+                }
+                int left = emit(children.get(0));
+                int right = emit(children.get(1));
+                return operation(op.getType(), left, right);
+            } else {
+                throw new Exception("Unsupported node type");
+            }
+        }
+
+        // Returns the register of a constant, adding it the first time it is seen
+        private int constant(double value) {
+            return constantRegisters.computeIfAbsent(Double.doubleToRawLongBits(value), bits -> {
+                constants.add(value);
+                return encodeConstant(constants.size() - 1);
+            });
+        }
+
+        // Returns the register holding the result of an operation, simplifying it when the result is known
+        private int operation(Operator.Type type, int left, int right) {
+            Double leftValue = constantValue(left);
+            Double rightValue = constantValue(right);
+            if (leftValue != null && rightValue != null) {
+                return constant(apply(type, leftValue, rightValue)); // Constant folding
+            }
+
+            switch (type) {
+                case SUM:
+                    // x + 0 = x, except that -0.0 + 0.0 = 0.0; x + -0.0 = x for every x
+                    if (isZero(rightValue) && (isNegativeZero(rightValue) || !mayBeNegativeZero(left))) {
+                        return left;
+                    }
+                    if (isZero(leftValue) && (isNegativeZero(leftValue) || !mayBeNegativeZero(right))) {
+                        return right;
+                    }
+                    break;
+                case SUBTRACTION:
+                    // x - 0.0 = x; x - -0.0 = x + 0.0
+                    if (isZero(rightValue) && (!isNegativeZero(rightValue) || !mayBeNegativeZero(left))) {
+                        return left;
+                    }
+                    break;
+                case MULTIPLICATION:
+                    if (isOne(rightValue)) {
+                        return left;
+                    }
+                    if (isOne(leftValue)) {
+                        return right;
+                    }
+                    break;
+                case DIVISION:
+                    if (isOne(rightValue)) {
+                        return left;
+                    }
+                    break;
+                case POWER:
+                    if (isOne(rightValue)) {
+                        return left;
+                    }
+                    if (isZero(rightValue)) {
+                        return constant(1.0); // Math.pow(x, 0) is 1 even for NaN
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            // Addition and multiplication are commutative, so a+b and b+a share the instruction
+            if ((type == Operator.Type.SUM || type == Operator.Type.MULTIPLICATION) && left > right) {
+                int swap = left;
+                left = right;
+                right = swap;
+            }
+            List<Integer> key = Arrays.asList(type.ordinal(), left, right);
+            Integer register = instructionRegisters.get(key);
+            if (register == null) {
+                operations.add(type);
+                operands.add(new int[]{left, right});
+                negativeZeros.add(producesNegativeZero(type, left, right));
+                register = encodeInstruction(operations.size() - 1);
+                instructionRegisters.put(key, register);
+            }
+            return register;
+        }
+
+        // Whether an operation may produce -0.0; only + and - are tracked, the others are assumed to
+        private boolean producesNegativeZero(Operator.Type type, int left, int right) {
+            switch (type) {
+                case SUM:
+                    return mayBeNegativeZero(left) && mayBeNegativeZero(right); // Only -0.0 + -0.0
+                case SUBTRACTION:
+                    return mayBeNegativeZero(left); // Only -0.0 - 0.0
+                default:
+                    return true;
+            }
+        }
+
+        // Whether a register may hold -0.0; only the variables whose column says so may (ranges never do)
+        private boolean mayBeNegativeZero(int register) {
+            if (register >= 0) {
+                return slotNegativeZeros[register];
+            }
+            int code = -1 - register;
+            if (code % 2 == 0) {
+                return Double.doubleToRawLongBits(constants.get(code / 2)) == NEGATIVE_ZERO_BITS;
+            }
+            return negativeZeros.get(code / 2);
+        }
+
+        // Returns the value of a constant register, or null if the register is not a constant
+        private Double constantValue(int register) {
+            int code = -1 - register;
+            return register < 0 && code % 2 == 0 ? constants.get(code / 2) : null;
+        }
+
+        private static boolean isZero(Double value) {
+            return value != null && value == 0.0;
+        }
+
+        private static boolean isNegativeZero(Double value) {
+            return value != null && Double.doubleToRawLongBits(value) == NEGATIVE_ZERO_BITS;
+        }
+
+        private static boolean isOne(Double value) {
+            return value != null && value == 1.0;
+        }
+
+        // Provisional register numbers: slots are >= 0, constants and instructions are negative
+        private static int encodeConstant(int index) {
+            return -1 - 2 * index;
+        }
+
+        private static int encodeInstruction(int index) {
+            return -2 - 2 * index;
+        }
+
+        private int resolve(int register) {
+            if (register >= 0) {
+                return register;
+            }
+            int code = -1 - register;
+            if (code % 2 == 0) {
+                return variableCount + constantIndexes[code / 2]; // Constant
+            }
+            return variableCount + usedConstants + code / 2; // Instruction
+        }
+
+        // Numbers the constants still used after the simplifications, dropping the folded ones
+        private void numberConstants(int[] outputs) {
+            constantIndexes = new int[constants.size()];
+            Arrays.fill(constantIndexes, -1);
+            int used = 0;
+            List<Integer> registers = new ArrayList<>();
+            for (int[] pair : operands) {
+                registers.add(pair[0]);
+                registers.add(pair[1]);
+            }
+            for (int output : outputs) {
+                registers.add(output);
+            }
+            for (int register : registers) {
+                int code = -1 - register;
+                if (register < 0 && code % 2 == 0 && constantIndexes[code / 2] < 0) {
+                    constantIndexes[code / 2] = used++;
+                }
+            }
+            usedConstants = used;
+        }
+
+        ExpressionProgram build(int[] outputs) {
+            numberConstants(outputs);
+            int constantBase = variableCount;
+            int instructionBase = constantBase + usedConstants;
+            double[] registers = new double[instructionBase + operations.size()];
+            for (int i = 0; i < constants.size(); i++) {
+                if (constantIndexes[i] >= 0) {
+                    registers[constantBase + constantIndexes[i]] = constants.get(i);
+                }
+            }
+
+            int count = operations.size();
+            int[] left = new int[count];
+            int[] right = new int[count];
+            int[] targets = new int[count];
+            for (int i = 0; i < count; i++) {
+                left[i] = resolve(operands.get(i)[0]);
+                right[i] = resolve(operands.get(i)[1]);
+                targets[i] = instructionBase + i;
+            }
+
+            int[] resolvedOutputs = new int[outputs.length];
+            for (int i = 0; i < outputs.length; i++) {
+                resolvedOutputs[i] = resolve(outputs[i]);
+            }
+
+            return new ExpressionProgram(variableCount, registers, operations.toArray(new Operator.Type[0]),
+                    left, right, targets, resolvedOutputs, new int[Math.max(1, variableCount)]);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The FairScheduler class runs the requests read by the connections on the compute threads, sharing
+ * them fairly between connections instead of in arrival order, so that a client flooding the server
+ * with heavy requests cannot delay the requests of the other clients behind its own.
+ *
+ * Each connection has its own {@link Flow}, a queue of requests with their estimated cost, and the
+ * flows with queued requests are served by deficit round robin: in its turn a flow is credited a
+ * quantum of cost and runs requests while their cost is covered by its credit, and the credit it does
+ * not use is kept for its next turn. Over time every busy connection gets the same share of work,
+ * whatever the number and the size of its requests.
+ *
+ * Requests whose estimated cost is at most the fast-lane cost (STAT_ requests, which cost nothing, and
+ * small computations) skip the flows: they are run before any other request, and a dedicated thread
+ * runs them as well, so they are answered promptly even when every compute thread is busy.
+ */
+public class FairScheduler {
+
+    private final long quantum;      // Cost credited to a flow in each turn
+    private final long fastLaneCost; // Largest cost of the requests of the fast lane
+    private final Queue<Runnable> fastLane = new ArrayDeque<>(); // Guarded by this
+    private final Deque<Flow> active = new ArrayDeque<>(); // Flows with queued requests, in turn order, guarded by this
+    private int queued = 0; // Requests waiting in the flows and in the fast lane, guarded by this
+    private final LongAdder fastLaneRequests = new LongAdder();
+
+    /**
+     * Creates the scheduler and starts its threads.
+     *
+     * @param threads      The number of compute threads.
+     * @param quantum      The cost credited to a flow in each turn.
+     * @param fastLaneCost The largest cost of the requests of the fast lane.
+     */
+    public FairScheduler(int threads, long quantum, long fastLaneCost) {
+        this.quantum = quantum;
+        this.fastLaneCost = fastLaneCost;
+        for (int i = 0; i < threads; i++) {
+            start("compute-" + i, false);
+        }
+        start("compute-fast", true);
+    }
+
+    private void start(String name, boolean fastLaneOnly) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                Runnable task;
+                try {
+                    task = take(fastLaneOnly);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException | Error e) {
+                    System.err.printf("Error processing a request: %s%n", e);
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The queue of the requests of a connection
+    public class Flow {
+        private final Queue<Task> tasks = new ArrayDeque<>(); // Guarded by the scheduler
+        private long deficit = 0; // Cost the flow can still run in its turn, guarded by the scheduler
+
+        /**
+         * Queues a request of the connection.
+         *
+         * @param task The processing of the request.
+         * @param cost The estimated cost of the request.
+         */
+        public void execute(Runnable task, long cost) {
+            submit(this, task, cost);
+        }
+
+        // Returns an executor queueing its tasks in this flow with the given cost
+        public Executor executor(long cost) {
+            return task -> execute(task, cost);
+        }
+    }
+
+    // A queued request with its estimated cost
+    private static class Task {
+        final Runnable runnable;
+        final long cost;
+
+        Task(Runnable runnable, long cost) {
+            this.runnable = runnable;
+            this.cost = cost;
+        }
+    }
+
+    // Creates the flow of a new connection
+    public Flow newFlow() {
+        return new Flow();
+    }
+
+    private synchronized void submit(Flow flow, Runnable task, long cost) {
+        if (cost <= fastLaneCost) {
+            fastLane.add(task);
+            fastLaneRequests.increment();
+        } else {
+            flow.tasks.add(new Task(task, cost));
+            if (flow.tasks.size() == 1) {
+                // The flow joins the round with the credit of a turn
+                flow.deficit = quantum;
+                active.addLast(flow);
+            }
+        }
+        queued++;
+        notifyAll();
+    }
+
+    // Waits for the next request to run: the fast lane first, then the flows in turn
+    private synchronized Runnable take(boolean fastLaneOnly) throws InterruptedException {
+        while (true) {
+            if (!fastLane.isEmpty()) {
+                queued--;
+                return fastLane.poll();
+            }
+            if (!fastLaneOnly && !active.isEmpty()) {
+                queued--;
+                return nextFair();
+            }
+            wait();
+        }
+    }
+
+    // Takes the next request of the flows by deficit round robin; at least one flow must be active
+    private Runnable nextFair() {
+        while (true) {
+            for (int i = active.size(); i > 0; i--) {
+                Flow flow = active.peekFirst();
+                Task head = flow.tasks.peek();
+                if (head.cost <= flow.deficit) {
+                    flow.tasks.poll();
+                    flow.deficit -= head.cost;
+                    if (flow.tasks.isEmpty()) {
+                        // An idle flow does not save credit for later
+                        active.pollFirst();
+                        flow.deficit = 0;
+                    }
+                    return head.runnable;
+                }
+                // The turn of the flow ends: it goes to the back with the credit of its next turn
+                active.addLast(active.pollFirst());
+                flow.deficit = saturatedAdd(flow.deficit, quantum);
+            }
+
+            // No flow could run its next request in a whole round: skip the rounds in which none
+            // of them could, crediting every flow at once
+            long rounds = Long.MAX_VALUE;
+            for (Flow flow : active) {
+                long missing = flow.tasks.peek().cost - flow.deficit;
+                rounds = Math.min(rounds, missing / quantum + (missing % quantum == 0 ? 0 : 1));
+            }
+            long credit = rounds > Long.MAX_VALUE / quantum ? Long.MAX_VALUE : rounds * quantum;
+            for (Flow flow : active) {
+                flow.deficit = saturatedAdd(flow.deficit, credit);
+            }
+        }
+    }
+
+    private static long saturatedAdd(long a, long b) {
+        return a > Long.MAX_VALUE - b ? Long.MAX_VALUE : a + b;
+    }
+
+    // Returns the number of requests waiting to run
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    // Returns the number of requests that ran in the fast lane
+    public long getFastLaneRequests() {
+        return fastLaneRequests.sum();
+    }
+}
@@ -0,0 +1,277 @@
+import it.units.project.expression.Operator;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The KernelCompiler class translates the instructions of an {@link ExpressionProgram} into the
+ * bytecode of a JVM method, so that the JIT compiler can inline and optimize the evaluation of hot
+ * expressions as if they had been written in Java: each instruction becomes a few array loads, an
+ * arithmetic bytecode (or a call to {@link Math#pow}) and an array store, and constants are embedded
+ * in the code.
+ *
+ * The generated method implements {@link ExpressionKernel#run(double[], int)}: a tableswitch on the
+ * loop level jumps to the first instruction of that level, and the code falls through to the end.
+ * The class file uses version 49, which is verified without stack map frames, so the code can branch
+ * without computing them. The class is defined as a hidden class that is not strongly bound to its
+ * class loader: it is unloaded as soon as its kernel is no longer referenced, that is, when its
+ * program leaves the {@link ExpressionCache}.
+ */
+class KernelCompiler {
+
+    // Beyond this size HotSpot does not JIT-compile a method (DontCompileHugeMethods), so larger
+    // programs are faster when interpreted by ExpressionProgram
+    static final int MAX_INSTRUCTIONS = 400;
+
+    private static final String CLASS_NAME = "GeneratedExpressionKernel";
+    private static final int CLASS_VERSION = 49;
+
+    // Access flags
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+
+    // Opcodes
+    private static final int ICONST_0 = 0x03;
+    private static final int DCONST_0 = 0x0E;
+    private static final int DCONST_1 = 0x0F;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC2_W = 0x14;
+    private static final int ILOAD_2 = 0x1C;
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ALOAD_1 = 0x2B;
+    private static final int DALOAD = 0x31;
+    private static final int DASTORE = 0x52;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6B;
+    private static final int DDIV = 0x6F;
+    private static final int TABLESWITCH = 0xAA;
+    private static final int RETURN = 0xB1;
+    private static final int INVOKESPECIAL = 0xB7;
+    private static final int INVOKESTATIC = 0xB8;
+
+    private static final long ONE_BITS = Double.doubleToRawLongBits(1.0);
+
+    /**
+     * Generates and loads the kernel of a program.
+     *
+     * @param operations    The operation of each instruction.
+     * @param leftOperands  The register of the left operand of each instruction.
+     * @param rightOperands The register of the right operand of each instruction.
+     * @param targets       The register written by each instruction.
+     * @param registers     The initial register file, holding the constants.
+     * @param constantBase  The first constant register.
+     * @param constantEnd   The register after the last constant register.
+     * @param levelStarts   The first instruction of each loop level.
+     * @return The kernel.
+     * @throws Exception If the class cannot be defined.
+     */
+    static ExpressionKernel compile(Operator.Type[] operations, int[] leftOperands, int[] rightOperands,
+                                    int[] targets, double[] registers, int constantBase, int constantEnd,
+                                    int[] levelStarts) throws Exception {
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int kernelInterface = pool.classRef("ExpressionKernel");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int pow = pool.methodRef("java/lang/Math", "pow", "(DD)D");
+        int initName = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int runName = pool.utf8("run");
+        int runType = pool.utf8("([DI)V");
+        int codeName = pool.utf8("Code");
+
+        // Straight-line code of the instructions, recording where each one starts
+        Bytes body = new Bytes();
+        int[] offsets = new int[operations.length + 1];
+        for (int i = 0; i < operations.length; i++) {
+            offsets[i] = body.size();
+            body.u1(ALOAD_1);
+            pushInt(body, targets[i]);
+            load(body, pool, leftOperands[i], registers, constantBase, constantEnd);
+            load(body, pool, rightOperands[i], registers, constantBase, constantEnd);
+            switch (operations[i]) {
+                case SUM:
+                    body.u1(DADD);
+                    break;
+                case SUBTRACTION:
+                    body.u1(DSUB);
+                    break;
+                case MULTIPLICATION:
+                    body.u1(DMUL);
+                    break;
+                case DIVISION:
+                    body.u1(DDIV);
+                    break;
+                case POWER:
+                    body.u1(INVOKESTATIC).u2(pow);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported operator: " + operations[i]);
+            }
+            body.u1(DASTORE);
+        }
+        offsets[operations.length] = body.size();
+        body.u1(RETURN);
+
+        // Jump to the first instruction of the level: iload_2, tableswitch padded to 4 bytes, then the body
+        Bytes run = new Bytes();
+        int levels = levelStarts.length;
+        int header = 2 + 2 + 12 + 4 * levels;
+        run.u1(ILOAD_2).u1(TABLESWITCH).u1(0).u1(0);
+        run.u4(header - 1 + offsets[0]).u4(0).u4(levels - 1); // Default, low, high; offsets from the tableswitch
+        for (int level = 0; level < levels; level++) {
+            run.u4(header - 1 + offsets[levelStarts[level]]);
+        }
+        run.bytes(body.toByteArray());
+
+        Bytes init = new Bytes();
+        init.u1(ALOAD_0).u1(INVOKESPECIAL).u2(objectInit).u1(RETURN);
+
+        Bytes classFile = new Bytes();
+        classFile.u4(0xCAFEBABE).u2(0).u2(CLASS_VERSION);
+        classFile.u2(pool.count()).bytes(pool.toByteArray());
+        classFile.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER).u2(thisClass).u2(superClass);
+        classFile.u2(1).u2(kernelInterface); // Interfaces
+        classFile.u2(0);                     // Fields
+        classFile.u2(2);                     // Methods
+        method(classFile, initName, initType, codeName, 1, 1, init.toByteArray());
+        method(classFile, runName, runType, codeName, 6, 3, run.toByteArray());
+        classFile.u2(0);                     // Attributes
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile.toByteArray(), true);
+        try {
+            return (ExpressionKernel) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new Exception(e);
+        }
+    }
+
+    // Pushes the value of a register: constants are embedded, other registers are loaded from the array
+    private static void load(Bytes code, ConstantPool pool, int register, double[] registers,
+                             int constantBase, int constantEnd) {
+        if (register >= constantBase && register < constantEnd) {
+            long bits = Double.doubleToRawLongBits(registers[register]);
+            if (bits == 0L) {
+                code.u1(DCONST_0);
+            } else if (bits == ONE_BITS) {
+                code.u1(DCONST_1);
+            } else {
+                code.u1(LDC2_W).u2(pool.doubleConstant(registers[register]));
+            }
+        } else {
+            code.u1(ALOAD_1);
+            pushInt(code, register);
+            code.u1(DALOAD);
+        }
+    }
+
+    private static void pushInt(Bytes code, int value) {
+        if (value <= 5) {
+            code.u1(ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            code.u1(BIPUSH).u1(value);
+        } else if (value <= Short.MAX_VALUE) {
+            code.u1(SIPUSH).u2(value);
+        } else {
+            throw new IllegalArgumentException("Too many registers: " + value);
+        }
+    }
+
+    // Writes a method with a Code attribute, without exception handlers
+    private static void method(Bytes classFile, int name, int type, int codeName,
+                               int maxStack, int maxLocals, byte[] code) {
+        classFile.u2(ACC_PUBLIC).u2(name).u2(type).u2(1);
+        classFile.u2(codeName).u4(2 + 2 + 4 + code.length + 2 + 2);
+        classFile.u2(maxStack).u2(maxLocals).u4(code.length).bytes(code);
+        classFile.u2(0).u2(0); // Exception table, attributes
+    }
+
+    // Big-endian writer of class file data
+    private static class Bytes {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Bytes u1(int value) {
+            out.write(value);
+            return this;
+        }
+
+        Bytes u2(int value) {
+            return u1(value >>> 8).u1(value);
+        }
+
+        Bytes u4(int value) {
+            return u2(value >>> 16).u2(value);
+        }
+
+        Bytes bytes(byte[] bytes) {
+            out.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        int size() {
+            return out.size();
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    // Constant pool of the generated class, adding each distinct entry once
+    private static class ConstantPool {
+        private final Bytes entries = new Bytes();
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private int count = 1; // Index 0 is not used
+
+        int utf8(String value) {
+            // Names and descriptors are ASCII, so their modified UTF-8 form is their bytes
+            return add("Utf8:" + value, 1, () -> entries.u1(1).u2(value.length()).bytes(value.getBytes()));
+        }
+
+        int classRef(String name) {
+            int nameIndex = utf8(name);
+            return add("Class:" + name, 1, () -> entries.u1(7).u2(nameIndex));
+        }
+
+        int methodRef(String owner, String name, String type) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            int nameAndType = add("NameAndType:" + name + type, 1, () -> entries.u1(12).u2(nameIndex).u2(typeIndex));
+            return add("Methodref:" + owner + "." + name + type, 1, () -> entries.u1(10).u2(ownerIndex).u2(nameAndType));
+        }
+
+        int doubleConstant(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            return add("Double:" + bits, 2, () -> entries.u1(6).u4((int) (bits >>> 32)).u4((int) bits));
+        }
+
+        // Doubles take two entries of the pool
+        private int add(String key, int slots, Runnable write) {
+            Integer index = indexes.get(key);
+            if (index == null) {
+                index = count;
+                write.run();
+                count += slots;
+                indexes.put(key, index);
+            }
+            return index;
+        }
+
+        int count() {
+            return count;
+        }
+
+        byte[] toByteArray() {
+            return entries.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The LatencyHistogram class records durations in nanoseconds into logarithmic buckets, in the
+ * style of an HDR histogram: every power of two is split into {@code 2^SUB_BUCKET_BITS} linear
+ * sub-buckets, so a percentile is reported with a relative error below {@code 2^-SUB_BUCKET_BITS}.
+ * Recording is lock-free and costs one atomic increment, so it can be called by every request.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7; // 128 sub-buckets per power of two, under 1% error
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder totalCount = new LongAdder();
+
+    // Records a duration, in nanoseconds; negative durations are recorded as 0
+    public void record(long nanos) {
+        counts.incrementAndGet(indexOf(Math.max(0, nanos)));
+        totalCount.increment();
+    }
+
+    // Returns the number of recorded durations
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * Returns the duration below which the given fraction of the recorded durations falls.
+     * The value is the upper bound of the bucket holding that percentile.
+     *
+     * @param percentile The fraction of durations, between 0 and 1 (for example 0.99).
+     * @return The duration in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        // Snapshot of the counts; concurrent records may be partially included
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return highestValueOf(i);
+            }
+        }
+        return highestValueOf(BUCKET_COUNT - 1);
+    }
+
+    // Values below SUB_BUCKET_COUNT have a bucket each; above, the top SUB_BUCKET_BITS + 1 bits select the bucket
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    // Returns the largest value mapped to a bucket
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        long upper = ((subBucket + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * The LineFramer class splits the bytes received on a connection into request lines, so that every
+ * front-end frames the same byte stream in the same way. A line ends with "\n", "\r" or "\r\n", as
+ * with {@link java.io.BufferedReader#readLine()}, and is decoded with the default charset. A line
+ * longer than {@value #MAX_LINE_LENGTH} bytes is refused instead of being buffered, so a client never
+ * ending its line cannot fill the memory of the server; the connection is then answered with
+ * {@value #LINE_TOO_LONG_ERROR} and closed.
+ */
+class LineFramer {
+
+    static final int MAX_LINE_LENGTH = 1 << 20; // Longest request line, in bytes
+    static final String LINE_TOO_LONG_ERROR = "ERR;Request line too long";
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(); // Line being framed
+    private boolean skipLineFeed = false; // The last line ended with '\r', so a following '\n' belongs to it
+    private boolean tooLong = false;      // The line being framed exceeded the maximum length
+
+    /**
+     * Adds a byte received.
+     *
+     * @param b The byte, as an unsigned value.
+     * @return The line it completes, without the terminator, or null if the line is not complete or
+     * is too long (see {@link #isTooLong()}).
+     */
+    String add(int b) {
+        if (b == '\n' && skipLineFeed) {
+            skipLineFeed = false;
+            return null;
+        }
+        skipLineFeed = b == '\r';
+        if (b == '\n' || b == '\r') {
+            String request = line.toString(Charset.defaultCharset());
+            line.reset();
+            return request;
+        }
+        if (line.size() >= MAX_LINE_LENGTH) {
+            tooLong = true;
+            return null;
+        }
+        line.write(b);
+        return null;
+    }
+
+    // Returns true if the line being framed exceeded the maximum length; the connection must be closed
+    boolean isTooLong() {
+        return tooLong;
+    }
+
+    // Returns true if a byte is the '\n' of a "\r\n" terminator whose '\r' ended the last line, as in
+    // "BINARY\r\n"; the bytes following a line that are not framed as lines must go through it once
+    boolean isLineFeedOfLastLine(int b) {
+        boolean lineFeed = skipLineFeed && b == '\n';
+        skipLineFeed = false;
+        return lineFeed;
+    }
+
+    // Returns the unterminated line received before the end of the stream, or null if there is none
+    String finish() {
+        if (line.size() == 0) {
+            return null;
+        }
+        String request = line.toString(Charset.defaultCharset());
+        line.reset();
+        return request;
+    }
+}
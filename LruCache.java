@@ -0,0 +1,87 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The LruCache class is a size-bounded map shared between threads that evicts the least recently
+ * used entry when it is full. It also counts hits, misses and evictions so that its size can be tuned.
+ *
+ * @param <K> The type of the keys.
+ * @param <V> The type of the cached values.
+ */
+public class LruCache<K, V> {
+
+    // Function computing a missing value, which may fail
+    public interface Loader<K, V> {
+        V load(K key) throws Exception;
+    }
+
+    private final int capacity;
+    private final Map<K, V> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public LruCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be greater than 0");
+        }
+        this.capacity = capacity;
+        // Access-ordered map: the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > LruCache.this.capacity) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached value for the key, loading and caching it on a miss.
+     * The loader runs outside the lock, so two threads missing the same key may both load it;
+     * values must therefore be equivalent whichever load wins. Failed loads are not cached.
+     */
+    public V get(K key, Loader<K, V> loader) throws Exception {
+        V value;
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+
+        value = loader.load(key);
+        synchronized (entries) {
+            V existing = entries.putIfAbsent(key, value);
+            return existing != null ? existing : value;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
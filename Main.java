@@ -9,22 +9,22 @@ public class Main {
     public static void main(String[] args) throws IOException {
         // Check if the port is specified as an argument
         if (args.length < 1) {
-            System.out.println("Usage: java -jar Server.jar <port>");
+            System.out.println("Usage: java -jar Server.jar <port> [--option=value ...]");
             return;
         }
 
-        int port;
+        ServerConfig config;
         try {
-            port = Integer.parseInt(args[0]);
-        } catch (NumberFormatException e) {
-            // Handles the case where the argument is not a valid number
-            System.err.println("Invalid port number. Please provide a valid integer.");
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            // Handles the case where the port or an option is not valid
+            System.err.println(e.getMessage());
             return;
         }
 
-        // Create and start the server on the specified port
-        Server server = new Server(port);
         try {
+            // Create and start the server on the specified port
+            Server server = new Server(config);
             server.start();
         } catch (IOException e) {
             // Handle the error during connection acceptance
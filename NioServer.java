@@ -0,0 +1,423 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The NioServer class is a non-blocking front-end for the server. Connections are multiplexed on a
+ * small set of I/O threads, each owning a {@link Selector}; requests are framed by newline and every
+ * complete request is queued, with its estimated cost, in the flow of its connection in the
+ * {@link FairScheduler} of the server. An idle connection costs no thread,
+ * so many mostly idle clients can stay connected at the same time.
+ *
+ * As in the thread-per-connection mode, requests of the same connection are pipelined: up to a
+ * window of them is processed concurrently, and the responses are written in the order the requests
+ * arrived. After the "BINARY" command a connection switches to the frames of the {@link BinaryProtocol}.
+ * When a connection is closed, the requests still being processed are cancelled.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final Charset CHARSET = Charset.defaultCharset(); // Same charset as the blocking mode
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+    private static final Object BINARY_SWITCH = new Object(); // Queued in place of the "BINARY" command
+    private static final Object LINE_TOO_LONG = new Object(); // Queued in place of a line too long, the last request
+
+    private final Server server;
+    private final RequestProcessor processor;
+    private final FairScheduler scheduler;
+    private final int pipelineWindow;
+    private final BufferPool bufferPool;
+    private final IoWorker[] workers;
+
+    public NioServer(Server server, int ioThreads) throws IOException {
+        this.server = server;
+        this.processor = server.getRequestProcessor();
+        this.scheduler = server.getScheduler();
+        this.pipelineWindow = server.getConfig().getPipelineWindow();
+        this.bufferPool = server.getBufferPool();
+        this.workers = new IoWorker[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            workers[i] = new IoWorker();
+        }
+    }
+
+    // Starts the I/O threads and accepts connections, assigning them to the I/O threads in turn
+    public void start() throws IOException {
+        for (int i = 0; i < workers.length; i++) {
+            Thread thread = new Thread(workers[i], "nio-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int port = server.getConfig().getPort();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Server listening on port " + port + " (non-blocking, "
+                    + workers.length + " I/O threads)");
+
+            int next = 0;
+            while (true) {
+                try {
+                    // Accept a new client connection
+                    SocketChannel channel = serverChannel.accept();
+                    System.out.println("New connection from client: " + channel.getRemoteAddress());
+                    workers[next].register(channel);
+                    next = (next + 1) % workers.length;
+                } catch (IOException e) {
+                    System.err.printf("Cannot accept connection due to %s%n", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // An I/O thread serving the connections registered on its selector
+    private class IoWorker implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Work posted by other threads
+
+        IoWorker() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // Runs a task on this I/O thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (IOException e) {
+                    System.err.printf("Cannot register connection due to %s%n", e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.printf("Selector error: %s%n", e.getMessage());
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        System.err.printf("I/O error: %s%n", e.getMessage());
+                        connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    // A request being processed; its response is filled in on the I/O thread when it is ready
+    private static class PendingResponse {
+        private final Cancellation cancellation; // Null for responses that need no processing
+        private ByteBuffer response;
+
+        PendingResponse(Cancellation cancellation) {
+            this.cancellation = cancellation;
+        }
+    }
+
+    // State of a single client connection; only accessed from the I/O thread that owns it
+    private class Connection {
+        private final IoWorker worker;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final SocketAddress remoteAddress;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final LineFramer framer = new LineFramer(); // Splits the bytes of the connection into lines
+        private final ByteBuffer frameHeader = ByteBuffer.allocate(4); // Length of the binary frame being read
+        private ByteBuffer framePayload; // Payload of the binary frame being read, null while reading its length
+        private int frameLength;         // Length of the binary frame being read
+        private final Queue<Object> requests = new ArrayDeque<>();   // Complete requests (lines or frames) waiting for a slot in the window
+        private final Queue<PendingResponse> inFlight = new ArrayDeque<>(); // Requests being processed, in arrival order
+        private final Queue<ByteBuffer> responses = new ArrayDeque<>(); // Responses waiting to be written
+        private final FairScheduler.Flow flow = scheduler.newFlow(); // Queue of the requests in the scheduler
+        private boolean closing = false; // "BYE" was received
+        private boolean binary = false; // "BINARY" was received, the client now sends frames
+
+        Connection(IoWorker worker, SocketChannel channel, SelectionKey key) throws IOException {
+            this.worker = worker;
+            this.channel = channel;
+            this.key = key;
+            this.remoteAddress = channel.getRemoteAddress();
+        }
+
+        // Reads the available bytes and frames them into requests
+        void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                close(); // The client closed the connection
+                return;
+            }
+
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !closing) {
+                if (binary) {
+                    if (framer.isLineFeedOfLastLine(readBuffer.get(readBuffer.position()))) {
+                        readBuffer.get(); // The "\n" of a "BINARY\r\n" command
+                        continue;
+                    }
+                    if (!readFrame()) {
+                        close();
+                        return;
+                    }
+                    continue;
+                }
+                String request = framer.add(readBuffer.get() & 0xFF);
+                if (request != null) {
+                    onRequest(request);
+                } else if (framer.isTooLong()) {
+                    // The rest of the line is not read: the previous requests and the error are answered
+                    closing = true;
+                    requests.add(LINE_TOO_LONG);
+                }
+            }
+            readBuffer.clear();
+            dispatch();
+        }
+
+        // Moves the read bytes into the binary frame being read; returns false if the frame is invalid
+        private boolean readFrame() {
+            if (framePayload == null) {
+                while (frameHeader.hasRemaining() && readBuffer.hasRemaining()) {
+                    frameHeader.put(readBuffer.get());
+                }
+                if (frameHeader.hasRemaining()) {
+                    return true;
+                }
+                int length = frameHeader.getInt(0);
+                frameHeader.clear();
+                if (length < 1 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    System.err.printf("Invalid frame length: %d%n", length);
+                    return false;
+                }
+                // The payload grows as its bytes arrive, so a header alone does not allocate its length
+                frameLength = length;
+                framePayload = bufferPool.acquire(Math.min(length, BufferPool.BUFFER_SIZE));
+                framePayload.limit(Math.min(length, framePayload.capacity()));
+            }
+
+            int count = Math.min(readBuffer.remaining(), framePayload.remaining());
+            ByteBuffer chunk = readBuffer.duplicate();
+            chunk.limit(chunk.position() + count);
+            framePayload.put(chunk);
+            readBuffer.position(readBuffer.position() + count);
+            if (!framePayload.hasRemaining() && framePayload.position() < frameLength) {
+                framePayload = bufferPool.grow(framePayload, frameLength);
+            } else if (!framePayload.hasRemaining()) {
+                ByteBuffer payload = framePayload.flip();
+                framePayload = null;
+                if (payload.get(0) == BinaryProtocol.QUIT) {
+                    bufferPool.release(payload);
+                    closing = true;
+                } else {
+                    requests.add(payload);
+                }
+            }
+            return true;
+        }
+
+        private void onRequest(String request) {
+            // Close the connection only when "BYE" is received, after answering the previous requests
+            if (request.equals(ClientHandler.QUIT_REQUEST)) {
+                closing = true;
+                return;
+            }
+            // The bytes after "BINARY" are frames
+            if (request.equals(BinaryProtocol.NEGOTIATION_REQUEST)) {
+                binary = true;
+                requests.add(BINARY_SWITCH);
+                return;
+            }
+            requests.add(request);
+        }
+
+        // Hands queued requests to the scheduler while the window has free slots
+        private void dispatch() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            boolean ready = false; // Some responses are ready without processing
+            while (inFlight.size() < pipelineWindow && !requests.isEmpty()) {
+                Object request = requests.poll();
+                if (request == BINARY_SWITCH || request == LINE_TOO_LONG) {
+                    PendingResponse pending = new PendingResponse(null);
+                    inFlight.add(pending);
+                    pending.response = encodeLine(request == BINARY_SWITCH
+                            ? BinaryProtocol.NEGOTIATION_RESPONSE : LineFramer.LINE_TOO_LONG_ERROR);
+                    ready = true;
+                    continue;
+                }
+                PendingResponse pending = new PendingResponse(newCancellation(request));
+                inFlight.add(pending);
+                flow.execute(() -> {
+                    ByteBuffer response;
+                    try {
+                        response = process(request, pending.cancellation);
+                    } catch (RuntimeException | Error e) {
+                        worker.execute(this::close);
+                        throw e;
+                    }
+                    worker.execute(() -> onResponse(pending, response));
+                }, estimateCost(request));
+            }
+            if (ready && !writeResponses()) {
+                return;
+            }
+
+            // Stops reading while the window is full, so a client cannot pile up unbounded work
+            setInterest(SelectionKey.OP_READ, !closing && requests.isEmpty());
+            closeIfDone();
+        }
+
+        private Cancellation newCancellation(Object request) {
+            return request instanceof String
+                    ? processor.newCancellation((String) request)
+                    : processor.newCancellation((ByteBuffer) request);
+        }
+
+        private long estimateCost(Object request) {
+            return request instanceof String
+                    ? processor.estimateCost((String) request)
+                    : processor.estimateCost((ByteBuffer) request);
+        }
+
+        // Processes a line or a binary frame on a compute thread, returning the encoded response
+        private ByteBuffer process(Object request, Cancellation cancellation) {
+            if (request instanceof String) {
+                return encodeLine(processor.process((String) request, cancellation));
+            }
+            ByteBuffer payload = (ByteBuffer) request;
+            try {
+                return processor.processBinary(payload, cancellation);
+            } finally {
+                bufferPool.release(payload);
+            }
+        }
+
+        private ByteBuffer encodeLine(String response) {
+            byte[] bytes = response.getBytes(CHARSET);
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.length + LINE_SEPARATOR.length);
+            return buffer.put(bytes).put(LINE_SEPARATOR).flip();
+        }
+
+        // Records a response that is ready, writes the ones that can be sent and dispatches more requests
+        private void onResponse(PendingResponse pending, ByteBuffer response) {
+            pending.response = response;
+            if (!channel.isOpen()) {
+                bufferPool.release(response);
+                return;
+            }
+            if (writeResponses()) {
+                dispatch();
+            }
+        }
+
+        // Queues the responses that are ready, in request order, and writes them; returns false if the connection was closed
+        private boolean writeResponses() {
+            while (!inFlight.isEmpty() && inFlight.peek().response != null) {
+                responses.add(inFlight.poll().response);
+            }
+            try {
+                long writeStartTime = System.nanoTime();
+                flush();
+                server.addPhaseTime(RequestTrace.Phase.WRITE, System.nanoTime() - writeStartTime);
+            } catch (IOException e) {
+                System.err.printf("I/O error: %s%n", e.getMessage());
+                close();
+                return false;
+            }
+            return channel.isOpen();
+        }
+
+        // Writes the pending responses, waiting for the channel to become writable when it is full
+        void flush() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = responses.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    setInterest(SelectionKey.OP_WRITE, true);
+                    return;
+                }
+                bufferPool.release(responses.poll());
+            }
+            setInterest(SelectionKey.OP_WRITE, false);
+            closeIfDone();
+        }
+
+        // Closes the connection after "BYE", once every previous request has been answered
+        private void closeIfDone() {
+            if (closing && requests.isEmpty() && inFlight.isEmpty() && responses.isEmpty()) {
+                close();
+            }
+        }
+
+        private void setInterest(int operation, boolean enabled) {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = key.interestOps();
+            key.interestOps(enabled ? ops | operation : ops & ~operation);
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            key.cancel();
+            closeQuietly(channel);
+            // Nobody will read the responses of the requests still being processed
+            for (PendingResponse pending : inFlight) {
+                if (pending.cancellation != null && pending.response == null) {
+                    pending.cancellation.cancel();
+                }
+            }
+            // Log the disconnection
+            System.out.println("Client disconnected: " + remoteAddress);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.printf("Error closing socket: %s%n", e.getMessage());
+        }
+    }
+}
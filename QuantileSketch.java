@@ -0,0 +1,219 @@
+import java.util.Arrays;
+
+/**
+ * The QuantileSketch class estimates the quantiles of a stream of values in bounded memory, with the
+ * KLL sketch of Karnin, Lang and Liberty. Values are kept by a hierarchy of compactors, where a value
+ * of compactor h stands for 2^h values of the stream. When the sketch is full, the lowest compactor
+ * holding at least its capacity is sorted and one value of each pair is promoted to the next compactor,
+ * alternately the first and the second, so the estimated rank of any value moves by at most 2^h.
+ * Capacities shrink geometrically from the highest compactor down, so the sketch holds O(k) values
+ * and the rank error of a quantile is about 1/k of the number of values. Quantiles are exact until
+ * the first compaction, that is, for up to about k values.
+ *
+ * Two sketches are merged by concatenating their compactors level by level and compacting again, so
+ * the sketches of the chunks of a stream can be built in parallel and then combined.
+ */
+class QuantileSketch {
+
+    static final int K = 256; // Capacity of the highest compactor
+    private static final double CAPACITY_RATIO = 2.0 / 3.0; // Capacity of a compactor relative to the next one
+
+    private double[][] items = {new double[16]}; // Values of each compactor, in its first sizes[h] elements
+    private int[] sizes = {0};
+    private boolean[] promoteSecond = {false}; // Which value of each pair the next compaction promotes
+    private int height = 1;   // Number of compactors
+    private int size = 0;     // Values held by all the compactors
+    private int maxSize;      // Sum of the capacities of the compactors
+    private long count = 0;   // Values added to the stream, NaN excluded
+    private boolean nan = false; // True if a NaN value was added
+
+    QuantileSketch() {
+        maxSize = capacity(0);
+    }
+
+    // Capacity of a compactor, given the current height
+    private int capacity(int level) {
+        return (int) Math.ceil(K * Math.pow(CAPACITY_RATIO, height - 1 - level)) + 1;
+    }
+
+    // Adds a value of the stream
+    void add(double value) {
+        if (Double.isNaN(value)) {
+            nan = true;
+            return;
+        }
+        append(0, value);
+        size++;
+        count++;
+        if (size >= maxSize) {
+            compress();
+        }
+    }
+
+    // Adds the values of another sketch, which must not be used afterwards
+    void merge(QuantileSketch other) {
+        nan |= other.nan;
+        while (height < other.height) {
+            grow();
+        }
+        for (int level = 0; level < other.height; level++) {
+            for (int i = 0; i < other.sizes[level]; i++) {
+                append(level, other.items[level][i]);
+            }
+        }
+        size += other.size;
+        count += other.count;
+        while (size >= maxSize) {
+            compress();
+        }
+    }
+
+    /**
+     * Returns the nearest-rank percentile of the values: the smallest value such that at least the
+     * given percentage of the values is not greater, or NaN if there are no values or one is NaN.
+     *
+     * @param percent The percentage, between 1 and 100.
+     * @return The value, exact if the sketch never compacted its values.
+     */
+    double getPercentile(int percent) {
+        if (nan || count == 0) {
+            return Double.NaN;
+        }
+        // The held values, sorted, with the number of values of the stream each stands for
+        double[] values = new double[size];
+        long[] weights = new long[size];
+        Integer[] order = new Integer[size];
+        int n = 0;
+        for (int level = 0; level < height; level++) {
+            for (int i = 0; i < sizes[level]; i++) {
+                values[n] = items[level][i];
+                weights[n] = 1L << level;
+                order[n] = n;
+                n++;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+        // Rank of the percentile, computed in integers so that no rounding moves it
+        long rank = Math.max(1, (count / 100) * percent + (count % 100 * percent + 99) / 100);
+        long cumulative = 0;
+        for (int index : order) {
+            cumulative += weights[index];
+            if (cumulative >= rank) {
+                return values[index];
+            }
+        }
+        return values[order[n - 1]];
+    }
+
+    // Returns the compactors as text: the NaN flag, then the values of each compactor, separated by "/"
+    String encode() {
+        StringBuilder builder = new StringBuilder(nan ? "1" : "0");
+        for (int level = 0; level < height; level++) {
+            builder.append('/');
+            for (int i = 0; i < sizes[level]; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(items[level][i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Replaces the values with the ones of a sketch encoded by {@link #encode()}.
+     *
+     * @param state The encoded sketch.
+     * @throws Exception If the state is malformed.
+     */
+    void decode(String state) throws Exception {
+        String[] parts = state.split("/", -1);
+        if (parts.length < 2 || parts.length > Long.SIZE || !(parts[0].equals("0") || parts[0].equals("1"))) {
+            throw new Exception("Malformed aggregator state");
+        }
+        QuantileSketch decoded = new QuantileSketch();
+        decoded.nan = parts[0].equals("1");
+        while (decoded.height < parts.length - 1) {
+            decoded.grow();
+        }
+        try {
+            for (int level = 0; level < decoded.height; level++) {
+                if (parts[level + 1].isEmpty()) {
+                    continue;
+                }
+                for (String value : parts[level + 1].split(",", -1)) {
+                    double number = Double.parseDouble(value);
+                    if (Double.isNaN(number)) {
+                        throw new NumberFormatException();
+                    }
+                    decoded.append(level, number);
+                    decoded.size++;
+                    decoded.count += 1L << level;
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new Exception("Malformed aggregator state");
+        }
+        while (decoded.size >= decoded.maxSize) {
+            decoded.compress();
+        }
+        items = decoded.items;
+        sizes = decoded.sizes;
+        promoteSecond = decoded.promoteSecond;
+        height = decoded.height;
+        size = decoded.size;
+        maxSize = decoded.maxSize;
+        count = decoded.count;
+        nan = decoded.nan;
+    }
+
+    private void append(int level, double value) {
+        if (sizes[level] == items[level].length) {
+            items[level] = Arrays.copyOf(items[level], items[level].length * 2);
+        }
+        items[level][sizes[level]++] = value;
+    }
+
+    // Adds a compactor on top, which lowers the capacities of the others
+    private void grow() {
+        height++;
+        items = Arrays.copyOf(items, height);
+        items[height - 1] = new double[16];
+        sizes = Arrays.copyOf(sizes, height);
+        promoteSecond = Arrays.copyOf(promoteSecond, height);
+        maxSize = 0;
+        for (int level = 0; level < height; level++) {
+            maxSize += capacity(level);
+        }
+    }
+
+    // Compacts the lowest compactor holding at least its capacity; the sketch must be full, so one does
+    private void compress() {
+        for (int level = 0; level < height; level++) {
+            if (sizes[level] >= capacity(level)) {
+                if (level + 1 == height) {
+                    grow();
+                }
+                compact(level);
+                return;
+            }
+        }
+    }
+
+    // Sorts the values of a compactor and promotes one value of each pair; with an odd number of
+    // values the smallest one stays, so the promoted values stand for exactly the values removed
+    private void compact(int level) {
+        double[] values = items[level];
+        int n = sizes[level];
+        Arrays.sort(values, 0, n);
+        int first = n % 2;
+        int offset = promoteSecond[level] ? 1 : 0;
+        promoteSecond[level] = !promoteSecond[level];
+        for (int i = first; i + 1 < n; i += 2) {
+            append(level + 1, values[i + offset]);
+        }
+        sizes[level] = first;
+        size -= (n - first) / 2;
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * The RangeColumn class is the column of a variable defined by a range "start:step:end": its values
+ * are start, start + step, start + 2 * step, ... up to end, computed from their index when they are
+ * read, so a range costs the same memory whatever its length.
+ */
+public class RangeColumn implements Column {
+
+    private final double start;
+    private final double step;
+    private final int size;
+
+    public RangeColumn(double start, double step, int size) {
+        this.start = start;
+        this.step = step;
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public double get(int index) {
+        return start + index * step;
+    }
+
+    // The rounding of index * step and of the sum are monotone, so the values are too, unless a value is
+    // NaN: only a NaN start, or an infinite step, which makes a range of a single value, give NaN values
+    @Override
+    public boolean isNonDecreasing() {
+        return step > 0;
+    }
+
+    // The step is positive, so index * step is never -0.0, and neither is the sum, as -0.0 + 0.0 is 0.0
+    @Override
+    public boolean mayBeNegativeZero() {
+        return false;
+    }
+
+    @Override
+    public void copyTo(int from, double[] target, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            target[offset + i] = start + (from + i) * step;
+        }
+    }
+}
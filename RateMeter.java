@@ -0,0 +1,52 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The RateMeter class counts events over a sliding window of one minute, split into one-second
+ * slots that are reused as time passes. Updates are lock-free; an event racing with the reset of
+ * its slot at a second boundary may be lost, which is acceptable for a throughput indicator.
+ */
+public class RateMeter {
+
+    private static final int WINDOW_SECONDS = 60;
+
+    private final AtomicLongArray counts = new AtomicLongArray(WINDOW_SECONDS);  // Events of each slot
+    private final AtomicLongArray seconds = new AtomicLongArray(WINDOW_SECONDS); // Second counted by each slot
+    private final long startSecond = currentSecond();
+
+    public RateMeter() {
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            seconds.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    // Counts an event at the current time
+    public void mark() {
+        long second = currentSecond();
+        int slot = (int) Math.floorMod(second, (long) WINDOW_SECONDS);
+        long stamp = seconds.get(slot);
+        // The first event of a new second takes over the slot, discarding the count of a minute ago
+        if (stamp != second && seconds.compareAndSet(slot, stamp, second)) {
+            counts.set(slot, 0);
+        }
+        counts.incrementAndGet(slot);
+    }
+
+    // Returns the average number of events per second over the last minute
+    public double getRatePerSecond() {
+        long now = currentSecond();
+        long total = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            long second = seconds.get(i);
+            if (second > now - WINDOW_SECONDS && second <= now) {
+                total += counts.get(i);
+            }
+        }
+        // Right after startup the window is shorter than a minute
+        long window = Math.min(WINDOW_SECONDS, now - startSecond + 1);
+        return (double) total / window;
+    }
+
+    private static long currentSecond() {
+        return System.nanoTime() / 1_000_000_000L;
+    }
+}
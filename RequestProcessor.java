@@ -0,0 +1,888 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import it.units.project.expression.Node;
+
+/**
+ * The RequestProcessor class turns a single request line into the response line sent back to the
+ * client, updating the statistics of the server. It holds no per-connection state, so it is shared
+ * by all the connection front-ends of the server (thread-per-connection and non-blocking).
+ */
+public class RequestProcessor {
+    static final String TRACE_PREFIX = "TRACE:"; // Prefix asking for the phase breakdown in the response
+    static final String BATCH_PREFIX = "BATCH|";  // Prefix of a batch of computation requests separated by "|"
+    static final String DEADLINE_PREFIX = "DEADLINE:"; // Prefix giving the time a request has to complete: "DEADLINE:<ms>:"
+    static final String DATASET_PREFIX = "DATASET_"; // Prefix of the commands loading and dropping datasets
+    static final String SHARD_PREFIX = "SHARD;"; // Prefix of a shard of a request sent by a coordinator: "SHARD;<from>;<to>;<request>"
+
+    private final Server server;
+
+    public RequestProcessor(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Processes a request and returns the response with the time taken appended.
+     * A request starting with {@link #TRACE_PREFIX} also gets the time of each phase appended.
+     *
+     * @param request The request line, without the line terminator.
+     * @return The response line, without the line terminator.
+     */
+    public String process(String request) {
+        return process(request, newCancellation(request));
+    }
+
+    /**
+     * Creates the cancellation of a request about to be processed, with the deadline given by its
+     * {@link #DEADLINE_PREFIX}, or else by the timeout of the server, which also bounds the deadlines
+     * given by the clients.
+     *
+     * @param request The request line, without the line terminator.
+     * @return The cancellation, to be passed to {@link #process(String, Cancellation)}.
+     */
+    public Cancellation newCancellation(String request) {
+        long timeoutMillis = 0;
+        if (request.startsWith(DEADLINE_PREFIX)) {
+            int end = request.indexOf(':', DEADLINE_PREFIX.length());
+            try {
+                timeoutMillis = Long.parseLong(request.substring(DEADLINE_PREFIX.length(), end));
+            } catch (RuntimeException e) {
+                // Invalid deadlines are reported when the request is processed
+            }
+        }
+        return newCancellation(timeoutMillis);
+    }
+
+    // Creates the cancellation of a binary request frame about to be processed, as newCancellation(String)
+    public Cancellation newCancellation(ByteBuffer payload) {
+        byte type = payload.get(payload.position());
+        if (type == BinaryProtocol.TEXT) {
+            return newCancellation(BinaryProtocol.decodeText(payload.duplicate().position(payload.position() + 1)));
+        }
+        if (type == BinaryProtocol.TIMED_COMPUTATION && payload.remaining() >= 5) {
+            return newCancellation(Integer.toUnsignedLong(payload.getInt(payload.position() + 1)));
+        }
+        return newCancellation(0);
+    }
+
+    // Creates a cancellation with the shorter of the given timeout and the one of the server, 0 meaning none
+    private Cancellation newCancellation(long timeoutMillis) {
+        long serverTimeoutMillis = server.getConfig().getRequestTimeoutMillis();
+        if (timeoutMillis <= 0 || (serverTimeoutMillis > 0 && serverTimeoutMillis < timeoutMillis)) {
+            timeoutMillis = serverTimeoutMillis;
+        }
+        return new Cancellation(timeoutMillis);
+    }
+
+    /**
+     * Processes a request as {@link #process(String)}, stopping early if it is cancelled. A request
+     * past its deadline is answered with "ERR;{@value Cancellation#TIMEOUT_MESSAGE}".
+     *
+     * @param request      The request line, without the line terminator.
+     * @param cancellation The cancellation of the request, created when it was received.
+     * @return The response line, without the line terminator.
+     */
+    public String process(String request, Cancellation cancellation) {
+        long requestStartTime = System.nanoTime();
+        String deadlineError = null;
+        if (request.startsWith(DEADLINE_PREFIX)) {
+            int end = request.indexOf(':', DEADLINE_PREFIX.length());
+            deadlineError = end < 0 || !isValidDeadline(request.substring(DEADLINE_PREFIX.length(), end))
+                    ? "ERR;Invalid deadline" : null;
+            request = end < 0 ? "" : request.substring(end + 1);
+        }
+        boolean traced = request.startsWith(TRACE_PREFIX);
+        if (traced) {
+            request = request.substring(TRACE_PREFIX.length());
+        }
+        RequestTrace trace = new RequestTrace();
+        String response = deadlineError != null ? deadlineError : handleRequest(request, trace, cancellation);
+
+        // Increment request count
+        server.incrementRequestCount();
+        if (response.startsWith("ERR;")) {
+            countCancellation(response.substring("ERR;".length()));
+        }
+
+        long elapsedNanos = System.nanoTime() - requestStartTime;
+        server.addResponseTime(elapsedNanos); // Update statistics
+        server.addPhaseTimes(trace);
+
+        // Append the time taken, in seconds, to the response
+        String timedResponse = response + ";" + String.format("%.3f", elapsedNanos / 1e9);
+        String phases = trace.format();
+        // Only computation requests have phases; the write phase is not part of the response
+        return traced && !phases.isEmpty() ? timedResponse + ";" + phases : timedResponse;
+    }
+
+    // Returns whether the time of a deadline prefix is a valid number of milliseconds
+    private static boolean isValidDeadline(String millis) {
+        try {
+            return Long.parseLong(millis) >= 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Counts the requests that stopped because of their deadline or because they were cancelled
+    private void countCancellation(String error) {
+        if (error.equals(Cancellation.TIMEOUT_MESSAGE)) {
+            server.incrementTimeouts();
+        } else if (error.equals(Cancellation.CANCELLED_MESSAGE)) {
+            server.incrementCancelled();
+        }
+    }
+
+    /**
+     * Processes the payload of a binary request frame (see {@link BinaryProtocol}) and returns the
+     * response frame, ready to be written. Computation requests skip the text parsing of the request
+     * and of the numbers; text requests are processed as by {@link #process(String)}.
+     *
+     * @param payload The payload of the frame, positioned at the type byte. It is not released.
+     * @return The response frame, taken from the buffer pool of the server.
+     */
+    public ByteBuffer processBinary(ByteBuffer payload) {
+        return processBinary(payload, newCancellation(payload));
+    }
+
+    /**
+     * Processes the payload of a binary request frame as {@link #processBinary(ByteBuffer)}, stopping
+     * early if it is cancelled.
+     *
+     * @param payload      The payload of the frame, positioned at the type byte. It is not released.
+     * @param cancellation The cancellation of the request, created when it was received.
+     * @return The response frame, taken from the buffer pool of the server.
+     */
+    public ByteBuffer processBinary(ByteBuffer payload, Cancellation cancellation) {
+        BufferPool bufferPool = server.getBufferPool();
+        byte type = payload.get();
+        if (type == BinaryProtocol.TEXT) {
+            return BinaryProtocol.encodeText(bufferPool, process(BinaryProtocol.decodeText(payload), cancellation));
+        }
+
+        long requestStartTime = System.nanoTime();
+        RequestTrace trace = new RequestTrace();
+        double result = 0;
+        String error = null;
+        try {
+            if (type == BinaryProtocol.TIMED_COMPUTATION) {
+                if (payload.remaining() < 4) {
+                    throw new Exception("Malformed binary request");
+                }
+                payload.getInt(); // The deadline, already in the cancellation
+            } else if (type != BinaryProtocol.COMPUTATION) {
+                throw new Exception("Invalid binary request type: " + type);
+            }
+            cancellation.check();
+            result = handleBinaryComputationRequest(payload, trace, cancellation);
+        } catch (Exception e) {
+            error = e.getMessage();
+        }
+
+        // Increment request count
+        server.incrementRequestCount();
+        if (error != null) {
+            countCancellation(error);
+        }
+
+        long elapsedNanos = System.nanoTime() - requestStartTime;
+        server.addResponseTime(elapsedNanos); // Update statistics
+        server.addPhaseTimes(trace);
+
+        return error == null
+                ? BinaryProtocol.encodeResult(bufferPool, result, elapsedNanos / 1e9)
+                : BinaryProtocol.encodeError(bufferPool, error, elapsedNanos / 1e9);
+    }
+
+    /**
+     * Estimates the cost of a request before it is processed, so that the {@link FairScheduler} can
+     * share the compute threads between connections. Only the variable ranges are parsed, which is
+     * cheap as they are not expanded; the nodes of an expression are counted from its brackets, as
+     * the grammar requires a pair for each operator. STAT_ requests cost nothing, and so do requests
+     * that will be answered with an error without computing anything.
+     *
+     * @param request The request line, without the line terminator.
+     * @return The estimated cost, in tuples times expression nodes.
+     */
+    public long estimateCost(String request) {
+        if (request.startsWith(DEADLINE_PREFIX)) {
+            request = request.substring(request.indexOf(':', DEADLINE_PREFIX.length()) + 1);
+        }
+        if (request.startsWith(TRACE_PREFIX)) {
+            request = request.substring(TRACE_PREFIX.length());
+        }
+        if (request.startsWith("STAT_")) {
+            return 0;
+        }
+        if (request.startsWith(DATASET_PREFIX)) {
+            // Loading a dataset reads its whole file: its cost is the number of values, 8 bytes each
+            String[] parts = request.split(";", -1);
+            try {
+                return parts.length >= 3 ? Files.size(server.getDatasets().resolve(parts[2])) / Double.BYTES : 0;
+            } catch (Exception e) {
+                return 0;
+            }
+        }
+        if (request.startsWith(SHARD_PREFIX)) {
+            try {
+                ShardRequest shard = new ShardRequest(request.substring(SHARD_PREFIX.length()));
+                return estimateCost(shard.computation.computationKind, shard.to - shard.from, shard.computation.expressions);
+            } catch (Exception e) {
+                return 0;
+            }
+        }
+        if (request.startsWith(BATCH_PREFIX)) {
+            long cost = 0;
+            for (String part : request.substring(BATCH_PREFIX.length()).split("\\|", -1)) {
+                long partCost = estimateCost(part);
+                cost = cost > Long.MAX_VALUE - partCost ? Long.MAX_VALUE : cost + partCost;
+            }
+            return cost;
+        }
+        try {
+            ComputationRequest computation = new ComputationRequest(request);
+            Map<String, Column> variableValues =
+                    VariableParser.parseVariableValues(computation.variableValuesFunction, server.getDatasets());
+            return estimateCost(computation.computationKind, computation.valuesKind, variableValues, computation.expressions);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Estimates the cost of the payload of a binary request frame, as {@link #estimateCost(String)}.
+     *
+     * @param payload The payload of the frame, positioned at the type byte. Its position is not changed.
+     * @return The estimated cost, in tuples times expression nodes.
+     */
+    public long estimateCost(ByteBuffer payload) {
+        ByteBuffer view = payload.duplicate();
+        try {
+            byte type = view.get();
+            if (type == BinaryProtocol.TEXT) {
+                return estimateCost(BinaryProtocol.decodeText(view));
+            }
+            if (type == BinaryProtocol.TIMED_COMPUTATION) {
+                view.getInt();
+            } else if (type != BinaryProtocol.COMPUTATION) {
+                return 0;
+            }
+            BinaryProtocol.Computation computation = BinaryProtocol.decodeComputation(view);
+            Map<String, Column> variableValues = new HashMap<>();
+            for (int i = 0; i < computation.names.length; i++) {
+                variableValues.put(computation.names[i], VariableParser.parseRange(computation.names[i],
+                        computation.starts[i], computation.steps[i], computation.ends[i]));
+            }
+            return estimateCost(computation.kind, computation.valuesKind, variableValues, computation.expressions);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    private long estimateCost(ComputationEngine.ComputationKind computationKind, String valuesKindStr,
+                              Map<String, Column> variableValues, String expressionsStr) throws Exception {
+        if (computationKind == ComputationEngine.ComputationKind.COUNT) {
+            return 0;
+        }
+        TupleSpace tuples = TupleManager.buildValueTuples(variableValues, valuesKindStr);
+        return estimateCost(computationKind, evaluatedTuples(computationKind, tuples), expressionsStr);
+    }
+
+    private long estimateCost(ComputationEngine.ComputationKind computationKind, long evaluatedTuples,
+                              String expressionsStr) {
+        if (computationKind == ComputationEngine.ComputationKind.COUNT) {
+            return 0;
+        }
+        long nodes = 1;
+        for (int i = 0; i < expressionsStr.length(); i++) {
+            char c = expressionsStr.charAt(i);
+            nodes += c == '(' ? 2 : c == ',' ? 1 : 0;
+        }
+        long cost = AdmissionController.estimateCost(evaluatedTuples, nodes);
+        ServerConfig config = server.getConfig();
+        if (cost > config.getMaxRequestCost() && computationKind == ComputationEngine.ComputationKind.AVG
+                && config.getAdmissionPolicy() == AdmissionController.Policy.DOWNGRADE) {
+            // Estimated from a sample instead
+            cost = AdmissionController.estimateCost(Math.min(evaluatedTuples, config.getApproxMaxSamples()), nodes);
+        }
+        // Requests over the budget are rejected before computing anything
+        return cost > config.getMaxRequestCost() ? 0 : cost;
+    }
+
+    // Handles client requests
+    private String handleRequest(String request, RequestTrace trace, Cancellation cancellation) {
+        try {
+            cancellation.check(); // The request may have waited past its deadline
+            if (request.startsWith("STAT_")) {
+                return handleStatRequest(request); // Statistical requests
+            }
+            if (request.startsWith(BATCH_PREFIX)) {
+                return handleBatchRequest(request.substring(BATCH_PREFIX.length()), cancellation); // Batches of computations
+            }
+            if (request.startsWith(DATASET_PREFIX)) {
+                return handleDatasetRequest(request); // Loading and dropping datasets
+            }
+            if (request.startsWith(SHARD_PREFIX)) {
+                // Shards are not cached: the coordinator caches the results of the whole requests
+                return handleShardRequest(request.substring(SHARD_PREFIX.length()), trace, cancellation);
+            }
+
+            // Repeated computation requests are answered from the result cache, when enabled
+            ResultCache resultCache = server.getResultCache();
+            String key = resultCache != null ? ResultCache.canonicalize(request) : null;
+            AtomicBoolean downgraded = new AtomicBoolean();
+            if (key != null) {
+                // A downgraded average only estimates the result, so it is not kept for the next requests
+                return resultCache.get(key, k -> handleComputationRequest(request, trace, cancellation, downgraded),
+                        () -> !downgraded.get(), cancellation);
+            }
+            return handleComputationRequest(request, trace, cancellation, downgraded); // Computation requests
+        } catch (Exception e) {
+            return "ERR;" + e.getMessage(); // Return an error in case of exception
+        }
+    }
+
+    /**
+     * Handles the commands managing the datasets: "DATASET_LOAD;name;file" for a CSV file and
+     * "DATASET_LOAD;name;file;column,column,..." for a binary one, answered with the number of rows,
+     * and "DATASET_DROP;name".
+     *
+     * @param request The command.
+     * @return The response.
+     * @throws Exception If the command is invalid, or the dataset cannot be loaded.
+     */
+    private String handleDatasetRequest(String request) throws Exception {
+        String[] parts = request.split(";", -1);
+        DatasetRegistry datasets = server.getDatasets();
+        if (parts[0].equals("DATASET_LOAD") && (parts.length == 3 || parts.length == 4)) {
+            int rows = datasets.load(parts[1], parts[2], parts.length == 4 ? parts[3] : null);
+            return "OK;" + rows;
+        }
+        if (parts[0].equals("DATASET_DROP") && parts.length == 2) {
+            if (!datasets.drop(parts[1])) {
+                throw new Exception("Unknown dataset: " + parts[1]);
+            }
+            return "OK";
+        }
+        throw new Exception("Invalid dataset request");
+    }
+
+    // Handles statistical requests
+    private String handleStatRequest(String request) {
+        ResultCache resultCache = server.getResultCache();
+        switch (request) {
+            case "STAT_REQS":
+                long totalRequests = server.getTotalRequests(); // Total number of requests
+                return String.format("OK;%d", totalRequests);
+
+            case "STAT_AVG_TIME":
+                double averageResponseTime = server.getAverageResponseTime(); // Average response time
+                return String.format("OK;%.3f", averageResponseTime);
+
+            case "STAT_MAX_TIME":
+                double maxResponseTime = server.getMaxResponseTime(); // Maximum response time
+                return String.format("OK;%.3f", maxResponseTime);
+
+            // Percentiles of the response time, with microsecond resolution
+            case "STAT_P50_TIME":
+                return String.format("OK;%.6f", server.getResponseTimePercentile(0.50));
+
+            case "STAT_P99_TIME":
+                return String.format("OK;%.6f", server.getResponseTimePercentile(0.99));
+
+            case "STAT_P999_TIME":
+                return String.format("OK;%.6f", server.getResponseTimePercentile(0.999));
+
+            // Requests per second, averaged over the last minute
+            case "STAT_RPS_1M":
+                return String.format("OK;%.3f", server.getRequestsPerSecond());
+
+            // Counters of the parsed expressions cache
+            case "STAT_EXPR_CACHE_HITS":
+                return String.format("OK;%d", server.getExpressionCache().getExpressions().getHits());
+
+            case "STAT_EXPR_CACHE_MISSES":
+                return String.format("OK;%d", server.getExpressionCache().getExpressions().getMisses());
+
+            case "STAT_EXPR_CACHE_EVICTIONS":
+                return String.format("OK;%d", server.getExpressionCache().getExpressions().getEvictions());
+
+            case "STAT_EXPR_CACHE_SIZE":
+                return String.format("OK;%d", server.getExpressionCache().getExpressions().size());
+
+            // Counters of the compiled programs cache
+            case "STAT_PROG_CACHE_HITS":
+                return String.format("OK;%d", server.getExpressionCache().getPrograms().getHits());
+
+            case "STAT_PROG_CACHE_MISSES":
+                return String.format("OK;%d", server.getExpressionCache().getPrograms().getMisses());
+
+            case "STAT_PROG_CACHE_EVICTIONS":
+                return String.format("OK;%d", server.getExpressionCache().getPrograms().getEvictions());
+
+            case "STAT_PROG_CACHE_SIZE":
+                return String.format("OK;%d", server.getExpressionCache().getPrograms().size());
+
+            // Admission control: estimated cost of the computations in flight, requests rejected and downgraded
+            case "STAT_INFLIGHT_COST":
+                return String.format("OK;%d", server.getAdmissionController().getInFlightCost());
+
+            case "STAT_REJECTED_REQS":
+                return String.format("OK;%d", server.getAdmissionController().getRejected());
+
+            case "STAT_DOWNGRADED_REQS":
+                return String.format("OK;%d", server.getAdmissionController().getDowngraded());
+
+            // Scheduler: requests waiting for a compute thread, and requests run in the fast lane
+            case "STAT_QUEUED_REQS":
+                return String.format("OK;%d", server.getScheduler().getQueued());
+
+            case "STAT_FAST_LANE_REQS":
+                return String.format("OK;%d", server.getScheduler().getFastLaneRequests());
+
+            // Datasets loaded by the clients
+            case "STAT_DATASETS":
+                return String.format("OK;%d", server.getDatasets().size());
+
+            // Coordinator: shards sent to the workers, and shards sent again after a failure (0 on a worker)
+            case "STAT_SHARDS":
+                return String.format("OK;%d", server.getCoordinator() != null ? server.getCoordinator().getShards() : 0);
+
+            case "STAT_SHARD_RETRIES":
+                return String.format("OK;%d", server.getCoordinator() != null ? server.getCoordinator().getRetriedShards() : 0);
+
+            // Requests stopped at their deadline, and requests stopped because their client disconnected
+            case "STAT_TIMEOUTS":
+                return String.format("OK;%d", server.getTimeouts());
+
+            case "STAT_CANCELLED_REQS":
+                return String.format("OK;%d", server.getCancelled());
+
+            // Programs compiled to bytecode
+            case "STAT_PROG_COMPILED":
+                return String.format("OK;%d", server.getExpressionCache().getCompiledPrograms());
+
+            // Counters of the result cache, all 0 when it is disabled
+            case "STAT_RESULT_CACHE_HITS":
+                return String.format("OK;%d", resultCache == null ? 0 : resultCache.getHits());
+
+            case "STAT_RESULT_CACHE_MISSES":
+                return String.format("OK;%d", resultCache == null ? 0 : resultCache.getMisses());
+
+            case "STAT_RESULT_CACHE_COALESCED":
+                return String.format("OK;%d", resultCache == null ? 0 : resultCache.getCoalesced());
+
+            case "STAT_RESULT_CACHE_EVICTIONS":
+                return String.format("OK;%d", resultCache == null ? 0 : resultCache.getEvictions());
+
+            case "STAT_RESULT_CACHE_BYTES":
+                return String.format("OK;%d", resultCache == null ? 0 : resultCache.getUsedBytes());
+
+            default:
+                // Average time of a phase of computation requests: "STAT_PHASE_<phase>_TIME"
+                if (request.startsWith("STAT_PHASE_") && request.endsWith("_TIME")) {
+                    String phaseName = request.substring("STAT_PHASE_".length(), request.length() - "_TIME".length());
+                    for (RequestTrace.Phase phase : RequestTrace.Phase.values()) {
+                        if (phase.name().equals(phaseName)) {
+                            return String.format("OK;%.6f", server.getAveragePhaseTime(phase));
+                        }
+                    }
+                }
+                return "ERR;Invalid STAT request"; // Error message for invalid requests
+        }
+    }
+
+    // The parts of a computation request
+    private static class ComputationRequest {
+        private final ComputationEngine.ComputationKind computationKind;
+        private final String valuesKind;
+        private final String variableValuesFunction;
+        private final String expressions;
+
+        // Splits a request in the format "ComputationKind_ValuesKind;VariableValuesFunction;Expressions"
+        ComputationRequest(String request) throws Exception {
+            String[] parts = request.split(";");
+            if (parts.length != 3) {
+                throw new Exception("Invalid computation request format");
+            }
+
+            // Extract computation type and values type
+            String[] computationParts = parts[0].split("_");
+            if (computationParts.length != 2) {
+                throw new Exception("Invalid computation type format");
+            }
+
+            String computationKindStr = computationParts[0];
+            this.valuesKind = computationParts[1];
+            this.variableValuesFunction = parts[1];
+            this.expressions = parts[2];
+
+            // Parse computation type
+            try {
+                this.computationKind = ComputationEngine.ComputationKind.valueOf(computationKindStr.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new Exception("Invalid computation type: " + computationKindStr, e);
+            }
+        }
+    }
+
+    // The parts of a shard request
+    private static class ShardRequest {
+        private final long from;
+        private final long to;
+        private final ComputationRequest computation;
+
+        // Splits a shard in the format "<from>;<to>;<request>"
+        ShardRequest(String shard) throws Exception {
+            String[] parts = shard.split(";", 3);
+            if (parts.length != 3) {
+                throw new Exception("Invalid shard request format");
+            }
+            try {
+                this.from = Long.parseLong(parts[0]);
+                this.to = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new Exception("Invalid shard range");
+            }
+            if (from < 0 || from > to) {
+                throw new Exception("Invalid shard range");
+            }
+            this.computation = new ComputationRequest(parts[2]);
+        }
+    }
+
+    // Handles computation requests, timing each phase; an AVG request downgraded to AAVG sets the flag
+    private String handleComputationRequest(String request, RequestTrace trace, Cancellation cancellation,
+                                            AtomicBoolean downgraded) throws Exception {
+        trace.restart();
+        ComputationRequest computation = new ComputationRequest(request);
+        ComputationEngine.ComputationKind computationKind = computation.computationKind;
+        String valuesKindStr = computation.valuesKind;
+        String variableValuesFunction = computation.variableValuesFunction;
+        String expressionsStr = computation.expressions;
+        trace.end(RequestTrace.Phase.SPLIT);
+
+        // Parse variables (using the static method)
+        Map<String, Column> variableValues = VariableParser.parseVariableValues(variableValuesFunction, server.getDatasets());
+        trace.end(RequestTrace.Phase.VARIABLES);
+
+        double[] result = computeRequest(computationKind, valuesKindStr, variableValues, variableValuesFunction,
+                expressionsStr, trace, cancellation, downgraded);
+        if (computationKind == ComputationEngine.ComputationKind.AAVG || downgraded.get()) {
+            // The estimate, the bound of its error and the number of tuples sampled
+            return result[0] + ";" + result[1] + ";" + (long) result[2];
+        }
+        return Double.toString(result[0]); // Return the result of the computation
+    }
+
+    // Handles a binary computation request, timing each phase
+    private double handleBinaryComputationRequest(ByteBuffer payload, RequestTrace trace,
+                                                  Cancellation cancellation) throws Exception {
+        trace.restart();
+        BinaryProtocol.Computation computation = BinaryProtocol.decodeComputation(payload);
+        if (computation.kind == ComputationEngine.ComputationKind.AAVG) {
+            // A result frame holds a single value, without room for the error bound and the samples
+            throw new Exception("AAVG is only supported in text requests");
+        }
+        trace.end(RequestTrace.Phase.SPLIT);
+
+        // The ranges arrive as numbers, so only the values are generated
+        Map<String, Column> variableValues = new HashMap<>();
+        List<String> ranges = new ArrayList<>();
+        for (int i = 0; i < computation.names.length; i++) {
+            variableValues.put(computation.names[i], VariableParser.parseRange(computation.names[i],
+                    computation.starts[i], computation.steps[i], computation.ends[i]));
+            // The text form of the ranges, which a coordinator sends to its workers
+            ranges.add(computation.names[i] + ":" + computation.starts[i] + ":" + computation.steps[i] + ":" + computation.ends[i]);
+        }
+        trace.end(RequestTrace.Phase.VARIABLES);
+
+        // A downgraded average is answered with the estimate alone
+        return computeRequest(computation.kind, computation.valuesKind, variableValues, String.join(",", ranges),
+                computation.expressions, trace, cancellation, new AtomicBoolean())[0];
+    }
+
+    // Builds the tuples, compiles the expressions and runs the computation of a parsed request, returning
+    // its result, or for AAVG the estimate, its error bound and the number of samples. A coordinator
+    // sends the computation to its workers instead, except for AAVG and COUNT, which are cheaper here.
+    // An AVG request downgraded by the admission control is computed as AAVG, setting the flag.
+    private double[] computeRequest(ComputationEngine.ComputationKind computationKind, String valuesKindStr,
+                                  Map<String, Column> variableValues, String variableValuesFunction,
+                                  String expressionsStr, RequestTrace trace, Cancellation cancellation,
+                                  AtomicBoolean downgraded) throws Exception {
+        // Call static methods from TupleManager to build value tuples
+        TupleSpace tuples = TupleManager.buildValueTuples(variableValues, valuesKindStr);
+        trace.end(RequestTrace.Phase.TUPLES);
+
+        Coordinator coordinator = server.getCoordinator();
+        if (coordinator != null && !tuples.isEmpty() && computationKind != ComputationEngine.ComputationKind.AAVG
+                && computationKind != ComputationEngine.ComputationKind.COUNT) {
+            String request = computationKind + "_" + valuesKindStr + ";" + variableValuesFunction + ";" + expressionsStr;
+            double result = coordinator.compute(computationKind, request, tuples.size(), cancellation);
+            trace.end(RequestTrace.Phase.COMPUTE);
+            return new double[]{result};
+        }
+
+        ServerConfig config = server.getConfig();
+        EngineTask<double[]> estimate = engine -> {
+            downgraded.set(computationKind == ComputationEngine.ComputationKind.AVG);
+            return engine.estimateAverage(config.getApproxError(), config.getApproxMaxSamples(), cancellation);
+        };
+        return runEngine(computationKind, tuples, evaluatedTuples(computationKind, tuples), expressionsStr, trace,
+                cancellation, computationKind == ComputationEngine.ComputationKind.AAVG ? estimate
+                        : engine -> new double[]{engine.compute(cancellation)},
+                computationKind == ComputationEngine.ComputationKind.AVG ? estimate : null);
+    }
+
+    // Handles a shard of a request sent by a coordinator, answering with the encoded state of its aggregator
+    private String handleShardRequest(String request, RequestTrace trace, Cancellation cancellation) throws Exception {
+        trace.restart();
+        ShardRequest shard = new ShardRequest(request);
+        ComputationRequest computation = shard.computation;
+        if (computation.computationKind == ComputationEngine.ComputationKind.AAVG) {
+            throw new Exception("AAVG cannot be sharded");
+        }
+        trace.end(RequestTrace.Phase.SPLIT);
+
+        Map<String, Column> variableValues =
+                VariableParser.parseVariableValues(computation.variableValuesFunction, server.getDatasets());
+        trace.end(RequestTrace.Phase.VARIABLES);
+
+        TupleSpace tuples = TupleManager.buildValueTuples(variableValues, computation.valuesKind);
+        trace.end(RequestTrace.Phase.TUPLES);
+        if (shard.to > tuples.size()) {
+            throw new Exception("Invalid shard range");
+        }
+
+        Aggregator[] aggregators = runEngine(computation.computationKind, tuples, shard.to - shard.from,
+                computation.expressions, trace, cancellation,
+                engine -> engine.computePartial(shard.from, shard.to, cancellation), null);
+        return "OK;" + aggregators[0].encode();
+    }
+
+    // A computation run by an engine, once admitted
+    @FunctionalInterface
+    private interface EngineTask<T> {
+        T run(ComputationEngine engine) throws Exception;
+    }
+
+    /**
+     * Parses and compiles the expressions of a request, then runs a computation on its tuples once the
+     * admission control admits its cost. A computation with a cheaper estimate can be downgraded to it
+     * by the admission control (see {@link AdmissionController#admitOrDowngrade}).
+     *
+     * @param computationKind The computation kind of the request.
+     * @param tuples          The tuples of the request.
+     * @param evaluatedTuples The number of tuples the computation evaluates.
+     * @param expressionsStr  The expressions, separated by commas.
+     * @param trace           The trace of the request, ending its EXPRESSIONS, ADMISSION and COMPUTE phases.
+     * @param cancellation    The cancellation of the request, polled while waiting for admission.
+     * @param task            The computation.
+     * @param downgrade       The estimate from a sample replacing the computation, or null if there is none.
+     * @return The result of the computation, or of its estimate if downgraded.
+     * @throws Exception If the request is not admitted, or the computation fails.
+     */
+    private <T> T runEngine(ComputationEngine.ComputationKind computationKind, TupleSpace tuples, long evaluatedTuples,
+                            String expressionsStr, RequestTrace trace, Cancellation cancellation,
+                            EngineTask<T> task, EngineTask<T> downgrade) throws Exception {
+        // Parse expressions
+        List<Node> parsedExpressions = parseExpressions(expressionsStr);
+        // COUNT does not evaluate the expressions, so it costs nothing and they are not compiled
+        boolean evaluate = computationKind != ComputationEngine.ComputationKind.COUNT;
+        long nodes = countNodes(parsedExpressions);
+        long cost = evaluate ? AdmissionController.estimateCost(evaluatedTuples, nodes) : 0;
+        trace.end(RequestTrace.Phase.EXPRESSIONS);
+
+        // The time queued for admission is a phase of its own, not parsing nor computing
+        AdmissionController admission = server.getAdmissionController();
+        if (downgrade == null) {
+            admission.admit(cost, cancellation);
+        } else {
+            long sampleCost = AdmissionController.estimateCost(
+                    Math.min(evaluatedTuples, server.getConfig().getApproxMaxSamples()), nodes);
+            if (!admission.admitOrDowngrade(cost, sampleCost, cancellation)) {
+                cost = sampleCost;
+                task = downgrade;
+            }
+        }
+        trace.end(RequestTrace.Phase.ADMISSION);
+        try {
+            ExpressionProgram program = !evaluate ? null
+                    : server.getExpressionCache().compile(
+                            ExpressionCache.normalize(expressionsStr), parsedExpressions, tuples.getVariableNames(),
+                            tuples.getNegativeZeroSlots());
+            trace.end(RequestTrace.Phase.EXPRESSIONS);
+
+            // Create an instance of ComputationEngine and perform the computation
+            T result = task.run(new ComputationEngine(computationKind, program, tuples));
+            trace.end(RequestTrace.Phase.COMPUTE);
+            return result;
+        } finally {
+            admission.release(cost);
+        }
+    }
+
+    // Returns the number of tuples a computation evaluates: all of them, or at most the sample cap for AAVG
+    private long evaluatedTuples(ComputationEngine.ComputationKind computationKind, TupleSpace tuples) {
+        if (computationKind == ComputationEngine.ComputationKind.AAVG) {
+            return Math.min(tuples.size(), server.getConfig().getApproxMaxSamples());
+        }
+        return tuples.size();
+    }
+
+    // Counts the nodes of the expressions, that is, the values computed for each tuple
+    private static long countNodes(List<Node> expressions) {
+        long count = 0;
+        for (Node expression : expressions) {
+            count += 1 + countNodes(expression.getChildren());
+        }
+        return count;
+    }
+
+    /**
+     * Handles a batch of computation requests separated by "|", answering with their results separated
+     * by "|" in the same order. Requests with the same values kind and variable ranges form a group that
+     * builds its tuples once and evaluates each distinct expression once per tuple, whatever the number
+     * of requests using it.
+     *
+     * @param batch        The requests of the batch, without the prefix.
+     * @param cancellation The cancellation of the batch as a whole.
+     * @return The response listing the result (or the error) of each request.
+     * @throws Exception If the batch was cancelled.
+     */
+    private String handleBatchRequest(String batch, Cancellation cancellation) throws Exception {
+        String[] requests = batch.split("\\|", -1);
+        String[] results = new String[requests.length];
+        ComputationRequest[] computations = new ComputationRequest[requests.length];
+
+        // Groups the requests by values kind and variable ranges
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < requests.length; i++) {
+            try {
+                computations[i] = new ComputationRequest(requests[i]);
+                if (computations[i].computationKind == ComputationEngine.ComputationKind.AAVG
+                        || server.getCoordinator() != null) {
+                    // A sampled average evaluates its own random tuples, so it shares nothing with a group, and
+                    // a coordinator sends each request to its workers, which compute the shards in parallel
+                    results[i] = handleRequest(requests[i], new RequestTrace(), cancellation);
+                    continue;
+                }
+                String groupKey = computations[i].valuesKind.toUpperCase() + ";" + computations[i].variableValuesFunction;
+                groups.computeIfAbsent(groupKey, k -> new ArrayList<>()).add(i);
+            } catch (Exception e) {
+                results[i] = "ERR;" + e.getMessage();
+            }
+        }
+
+        for (List<Integer> group : groups.values()) {
+            try {
+                computeGroup(group, computations, results, cancellation);
+            } catch (Exception e) {
+                cancellation.check(); // A cancelled batch is not retried request by request
+                // The group failed as a whole (for example, one expression uses an unknown variable):
+                // each request is computed on its own, so that the error only affects the requests causing it
+                for (int i : group) {
+                    results[i] = handleRequest(requests[i], new RequestTrace(), cancellation);
+                }
+            }
+        }
+        return "OK;" + String.join("|", results);
+    }
+
+    // Computes the requests of a group, which share values kind and variable ranges, in a single pass
+    private void computeGroup(List<Integer> group, ComputationRequest[] computations, String[] results,
+                              Cancellation cancellation) throws Exception {
+        ComputationRequest first = computations[group.get(0)];
+        Map<String, Column> variableValues =
+                VariableParser.parseVariableValues(first.variableValuesFunction, server.getDatasets());
+        TupleSpace tuples = TupleManager.buildValueTuples(variableValues, first.valuesKind);
+
+        // Collects the distinct expressions of the group; each request reduces the ones it uses
+        Map<String, Integer> outputIndexes = new HashMap<>();
+        List<String> texts = new ArrayList<>();
+        List<Node> nodes = new ArrayList<>();
+        ComputationEngine.ComputationKind[] kinds = new ComputationEngine.ComputationKind[group.size()];
+        int[][] jobOutputs = new int[group.size()][];
+        boolean evaluate = false;
+        for (int j = 0; j < group.size(); j++) {
+            ComputationRequest computation = computations[group.get(j)];
+            kinds[j] = computation.computationKind;
+            evaluate |= kinds[j] != ComputationEngine.ComputationKind.COUNT;
+
+            List<Integer> outputs = new ArrayList<>();
+            for (String token : computation.expressions.split(",")) {
+                String text = ExpressionCache.normalize(token);
+                Integer index = outputIndexes.get(text);
+                if (index == null) {
+                    index = -1; // Expressions that cannot be parsed are skipped, as in single requests
+                    try {
+                        nodes.add(server.getExpressionCache().parse(token));
+                        texts.add(text);
+                        index = nodes.size() - 1;
+                    } catch (Exception e) {
+                        System.err.println("Error parsing expression: " + token);
+                    }
+                    outputIndexes.put(text, index);
+                }
+                if (index >= 0) {
+                    outputs.add(index);
+                }
+            }
+            jobOutputs[j] = outputs.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        long cost = evaluate ? AdmissionController.estimateCost(tuples.size(), countNodes(nodes)) : 0;
+        AdmissionController admission = server.getAdmissionController();
+        if (!admission.tryAdmit(cost)) {
+            if (admission.getPolicy() == AdmissionController.Policy.DOWNGRADE
+                    && Arrays.asList(kinds).contains(ComputationEngine.ComputationKind.AVG)) {
+                // The requests are computed one by one instead, so that each average can be downgraded
+                throw new Exception("Batch group over budget");
+            }
+            admission.admit(cost, cancellation);
+        }
+        try {
+            ExpressionProgram program = !evaluate ? null
+                    : server.getExpressionCache().compile(String.join(",", texts), nodes, tuples.getVariableNames(),
+                            tuples.getNegativeZeroSlots());
+            double[] values = new ComputationEngine(kinds, jobOutputs, program, tuples).computeAll(cancellation);
+            for (int j = 0; j < group.size(); j++) {
+                results[group.get(j)] = Double.toString(values[j]);
+            }
+        } finally {
+            admission.release(cost);
+        }
+    }
+
+    /**
+     * Parses a string of mathematical expressions separated by commas and converts them into a list of nodes.
+     * Each expression is transformed into a node representing the syntax tree of the expression.
+     * Expressions already seen by the server are taken from the shared {@link ExpressionCache}.
+     *
+     * @param expressions The string of expressions to parse, separated by commas.
+     * @return A list of {@link Node} nodes representing the parsed expressions.
+     */
+    private List<Node> parseExpressions(String expressions) {
+        String[] expressionTokens = expressions.split(",");
+        List<Node> nodes = new ArrayList<>();
+
+        for (String token : expressionTokens) {
+            try {
+                Node node = server.getExpressionCache().parse(token);
+                nodes.add(node);
+            } catch (Exception e) {
+                System.err.println("Error parsing expression: " + token);
+                // Add any specific error handling here if needed
+            }
+        }
+
+        return nodes;
+    }
+}
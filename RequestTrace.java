@@ -0,0 +1,61 @@
+/**
+ * The RequestTrace class measures how long each phase of a request takes, using {@link System#nanoTime()}.
+ * Phases are timed back to back: ending a phase starts the next one.
+ */
+public class RequestTrace {
+
+    // The phases of a request, in the order they run
+    public enum Phase {
+        SPLIT,       // Splitting the request and parsing the computation kind
+        VARIABLES,   // VariableParser.parseVariableValues
+        TUPLES,      // TupleManager.buildValueTuples
+        EXPRESSIONS, // Parsing and compiling the expressions
+        ADMISSION,   // Waiting for the AdmissionController to admit the cost of the request
+        COMPUTE,     // ComputationEngine.compute
+        WRITE        // Writing the response to the client
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long[] nanos = new long[PHASES.length];
+    private final boolean[] recorded = new boolean[PHASES.length];
+    private long mark = System.nanoTime(); // Start of the current phase
+
+    // Starts timing the next phase from now
+    public void restart() {
+        mark = System.nanoTime();
+    }
+
+    // Ends the current phase, adding its duration to the given phase, and starts the next one
+    public void end(Phase phase) {
+        long now = System.nanoTime();
+        nanos[phase.ordinal()] += now - mark;
+        recorded[phase.ordinal()] = true;
+        mark = now;
+    }
+
+    // Returns true if the phase ran for this request
+    public boolean isRecorded(Phase phase) {
+        return recorded[phase.ordinal()];
+    }
+
+    // Returns the duration of the phase, in nanoseconds
+    public long getNanos(Phase phase) {
+        return nanos[phase.ordinal()];
+    }
+
+    // Formats the phases that ran as "phase=seconds" pairs separated by commas
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : PHASES) {
+            if (recorded[phase.ordinal()]) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(phase.name().toLowerCase()).append('=')
+                        .append(String.format("%.6f", nanos[phase.ordinal()] / 1e9));
+            }
+        }
+        return sb.toString();
+    }
+}
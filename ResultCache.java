@@ -0,0 +1,202 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The ResultCache class stores the results of computation requests, so that repeated requests are
+ * answered without computing them again. Requests are identified by their canonical form (see
+ * {@link #canonicalize(String)}), entries expire after a time-to-live, and the least recently used
+ * entries are evicted when the estimated memory of the cache exceeds its bound.
+ *
+ * Identical requests arriving while the first one is still being computed wait for its result
+ * instead of computing it again.
+ */
+public class ResultCache {
+
+    // Estimated memory of an entry besides its strings: map node, entry object and string headers
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private long usedBytes = 0; // Guarded by entries
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // A cached result with its expiration time
+    private static class Entry {
+        private final String result;
+        private final long expiresAt;
+        private final long bytes;
+
+        Entry(String key, String result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+            this.bytes = ENTRY_OVERHEAD_BYTES + 2L * (key.length() + result.length());
+        }
+    }
+
+    public ResultCache(long maxBytes, long ttlMillis) {
+        this.maxBytes = maxBytes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis); // Saturates instead of overflowing
+    }
+
+    /**
+     * Returns the canonical form of a computation request: whitespace is stripped and the kinds are
+     * upper-cased. The variable definitions keep their order, as it can set the order in which the
+     * tuples are reduced, and so the rounding of SUM, AVG or VAR: requests differing only in the order
+     * of their definitions are cached apart. Requests with the same canonical form always produce the
+     * same result.
+     *
+     * @param request The computation request.
+     * @return The canonical request, or null if the request cannot be safely canonicalized
+     * (for example because it is malformed).
+     */
+    public static String canonicalize(String request) {
+        String[] parts = request.split(";");
+        if (parts.length != 3) {
+            return null;
+        }
+
+        String[] definitions = parts[1].split(",");
+        for (int i = 0; i < definitions.length; i++) {
+            String[] details = definitions[i].split(":");
+            if (details.length != 4) {
+                return null;
+            }
+            // Numbers are parsed ignoring surrounding whitespace, names are not
+            definitions[i] = details[0] + ":" + details[1].trim() + ":" + details[2].trim() + ":" + details[3].trim();
+        }
+
+        return parts[0].toUpperCase() + ";" + String.join(",", definitions) + ";" + ExpressionCache.normalize(parts[2]);
+    }
+
+    /**
+     * Returns the cached result of a request, computing it on a miss.
+     * Only one of several concurrent identical requests computes it; failures are not cached. A request
+     * waiting for another one to compute the result stops at its own deadline, and if the other one
+     * stops at its deadline or is cancelled, the result is computed again by a waiting request.
+     *
+     * @param key          The canonical request.
+     * @param loader       The function computing the result.
+     * @param cacheable    Whether the result computed by the loader can be kept; it is still given to the
+     *                     requests waiting for it.
+     * @param cancellation The cancellation of the request.
+     * @return The result of the request.
+     * @throws Exception If computing the result fails, or the request was cancelled.
+     */
+    public String get(String key, LruCache.Loader<String, String> loader, BooleanSupplier cacheable,
+                      Cancellation cancellation) throws Exception {
+        while (true) {
+            long now = System.nanoTime();
+            synchronized (entries) {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    if (entry.expiresAt - now > 0) {
+                        hits.increment();
+                        return entry.result;
+                    }
+                    remove(key);
+                }
+            }
+
+            CompletableFuture<String> pending = new CompletableFuture<>();
+            CompletableFuture<String> existing = inFlight.putIfAbsent(key, pending);
+            if (existing != null) {
+                // The same request is already being computed: waits for its result
+                coalesced.increment();
+                String result = cancellation.await(existing);
+                if (result != null) {
+                    return result;
+                }
+                continue; // The request computing it was stopped, without a result for the others
+            }
+
+            misses.increment();
+            String result;
+            try {
+                result = loader.load(key);
+            } catch (Throwable e) {
+                inFlight.remove(key, pending);
+                // Stopping one request does not stop the ones waiting for it: they compute the result themselves
+                if (cancellation.isCancelled()) {
+                    pending.complete(null);
+                } else {
+                    pending.completeExceptionally(e);
+                }
+                throw e;
+            }
+            if (cacheable.getAsBoolean()) {
+                put(key, result);
+            }
+            inFlight.remove(key, pending);
+            pending.complete(result);
+            return result;
+        }
+    }
+
+    // Stores a result and evicts the least recently used entries beyond the memory bound
+    private void put(String key, String result) {
+        Entry entry = new Entry(key, result, System.nanoTime() + ttlNanos);
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, entry);
+            usedBytes += entry.bytes;
+
+            Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && eldest.hasNext()) {
+                usedBytes -= eldest.next().getValue().bytes;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    // Removes an entry, updating the used memory; must be called while holding the entries lock
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            usedBytes -= removed.bytes;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getUsedBytes() {
+        synchronized (entries) {
+            return usedBytes;
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
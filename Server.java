@@ -3,30 +3,86 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Server class that handles multiple client connections using a thread pool.
  * It uses a thread pool with a maximum number of threads equal to the number of processors available
  * on the machine. The server also collects statistics on requests and response times.
+ * The requests read by the connections are processed on separate compute threads, as many as the
+ * processors, which a {@link FairScheduler} shares fairly between the connections.
+ *
+ * In NIO mode the connections are instead served by a {@link NioServer}, and in virtual mode each
+ * connection runs its {@link ClientHandler} on its own virtual thread.
  */
 public class Server {
+    private final ServerConfig config;
     private final int port;
     private final ExecutorService threadPool; // Thread pool to handle requests
+    private final FairScheduler scheduler; // Runs the requests read by the connections on the compute threads
+    private final RequestProcessor requestProcessor = new RequestProcessor(this);
     private final int availableProcessors; // Field for the number of available processors
-    private long totalRequests = 0; // Total number of handled requests
-    private double totalResponseTime = 0; // Accumulated total response time
-    private double maxResponseTime = 0; // Maximum response time
+    // Statistics are updated without locks, so that requests handled in parallel do not contend on them
+    private final LongAdder totalRequests = new LongAdder(); // Total number of handled requests
+    private final LongAdder totalResponseTime = new LongAdder(); // Accumulated total response time, in nanoseconds
+    private final LongAccumulator maxResponseTime = new LongAccumulator(Math::max, 0); // Maximum response time, in nanoseconds
+    private final LatencyHistogram responseTimes = new LatencyHistogram(); // Distribution of the response times
+    private final RateMeter requestRate = new RateMeter(); // Requests handled in the last minute
+    private final LongAdder timeouts = new LongAdder();  // Requests stopped at their deadline
+    private final LongAdder cancelled = new LongAdder(); // Requests stopped because their client disconnected
+    private final LongAdder[] phaseTimes = newAdders(RequestTrace.Phase.values().length); // Time of each phase, in nanoseconds
+    private final LongAdder[] phaseCounts = newAdders(RequestTrace.Phase.values().length); // Requests that ran each phase
+    private final ExpressionCache expressionCache; // Parsed expressions shared by all clients
+    private final ResultCache resultCache; // Results of repeated computation requests, null if disabled
+    private final BufferPool bufferPool = new BufferPool(); // Buffers of the binary protocol frames
+    private final AdmissionController admissionController; // Budgets of the computations in flight
+    private final Coordinator coordinator; // Computes the requests on the workers, null unless a coordinator
+    private final DatasetRegistry datasets; // Datasets loaded by the clients
 
     public Server(int port) {
-        this.port = port;
+        this(new ServerConfig(port));
+    }
+
+    public Server(ServerConfig config) {
+        this.config = config;
+        this.port = config.getPort();
+        this.admissionController = new AdmissionController(config.getMaxRequestCost(), config.getMaxInFlightCost(),
+                config.getAdmissionPolicy(), config.getAdmissionTimeoutMillis());
+        this.expressionCache = new ExpressionCache(ExpressionCache.DEFAULT_EXPRESSION_CAPACITY,
+                ExpressionCache.DEFAULT_PROGRAM_CAPACITY, config.getJitThreshold());
+        this.resultCache = config.getResultCacheBytes() > 0
+                ? new ResultCache(config.getResultCacheBytes(), config.getResultCacheTtlMillis())
+                : null;
+        this.coordinator = config.getRole() == ServerConfig.Role.COORDINATOR ? new Coordinator(config) : null;
+        this.datasets = new DatasetRegistry(config.getDatasetDir());
         // Save the number of available processors as a field
         this.availableProcessors = Runtime.getRuntime().availableProcessors();
-        // Create a thread pool with a maximum number of threads equal to the available processors
-        this.threadPool = Executors.newFixedThreadPool(availableProcessors);
+        // Create a thread pool with a maximum number of threads equal to the available processors,
+        // unless connections run on virtual threads, which do not limit the number of connections
+        this.threadPool = config.getMode() == ServerConfig.Mode.VIRTUAL
+                ? newVirtualThreadExecutor()
+                : Executors.newFixedThreadPool(availableProcessors);
+        this.scheduler = new FairScheduler(availableProcessors, config.getFairQuantum(), config.getFastLaneCost());
+    }
+
+    // Creates an executor starting a virtual thread per task. It is looked up at runtime, so the
+    // server still builds and runs in the other modes on Java versions without virtual threads.
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are not available on this Java version (21 or later is required)");
+        }
     }
 
     // Starts the server and accepts connections
     public void start() throws IOException {
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            new NioServer(this, config.getIoThreads()).start();
+            return;
+        }
+
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             System.out.println("Server listening on port " + port);
 
@@ -46,34 +102,140 @@ public class Server {
     }
 
     // Increments the count of received requests
-    public synchronized void incrementRequestCount() {
-        totalRequests++;
+    public void incrementRequestCount() {
+        totalRequests.increment();
+        requestRate.mark();
     }
 
-    // Adds the response time to the accumulated total and updates the maximum
-    public synchronized void addResponseTime(double responseTime) {
-        totalResponseTime += responseTime;
-        if (responseTime > maxResponseTime) {
-            maxResponseTime = responseTime;
-        }
+    // Adds the response time, in nanoseconds, to the accumulated total, the maximum and the histogram
+    public void addResponseTime(long responseTimeNanos) {
+        totalResponseTime.add(responseTimeNanos);
+        maxResponseTime.accumulate(responseTimeNanos);
+        responseTimes.record(responseTimeNanos);
+    }
+
+    // Counts a request stopped at its deadline
+    public void incrementTimeouts() {
+        timeouts.increment();
+    }
+
+    // Counts a request stopped because it was cancelled
+    public void incrementCancelled() {
+        cancelled.increment();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getCancelled() {
+        return cancelled.sum();
     }
 
     // Returns the total number of requests
-    public synchronized long getTotalRequests() {
-        return totalRequests;
+    public long getTotalRequests() {
+        return totalRequests.sum();
     }
 
-    // Calculates and returns the average response time
-    public synchronized double getAverageResponseTime() {
-        if (totalRequests == 0) {
+    // Calculates and returns the average response time, in seconds
+    public double getAverageResponseTime() {
+        long requests = totalRequests.sum();
+        if (requests == 0) {
             return 0.0;
         }
-        return totalResponseTime / totalRequests;
+        return totalResponseTime.sum() / 1e9 / requests;
+    }
+
+    // Returns the maximum response time, in seconds
+    public double getMaxResponseTime() {
+        return maxResponseTime.get() / 1e9;
+    }
+
+    // Returns the response time below which the given fraction of the requests falls, in seconds
+    public double getResponseTimePercentile(double percentile) {
+        // Buckets are reported by their upper bound, which may exceed the largest recorded time
+        return Math.min(responseTimes.getValueAtPercentile(percentile), maxResponseTime.get()) / 1e9;
+    }
+
+    // Returns the average number of requests per second over the last minute
+    public double getRequestsPerSecond() {
+        return requestRate.getRatePerSecond();
+    }
+
+    // Adds the time of the phases that ran for a request
+    public void addPhaseTimes(RequestTrace trace) {
+        for (RequestTrace.Phase phase : RequestTrace.Phase.values()) {
+            if (trace.isRecorded(phase)) {
+                addPhaseTime(phase, trace.getNanos(phase));
+            }
+        }
+    }
+
+    // Adds the time, in nanoseconds, of a single phase of a request
+    public void addPhaseTime(RequestTrace.Phase phase, long nanos) {
+        phaseTimes[phase.ordinal()].add(nanos);
+        phaseCounts[phase.ordinal()].increment();
+    }
+
+    // Returns the average time of a phase over the requests that ran it, in seconds
+    public double getAveragePhaseTime(RequestTrace.Phase phase) {
+        long count = phaseCounts[phase.ordinal()].sum();
+        if (count == 0) {
+            return 0.0;
+        }
+        return phaseTimes[phase.ordinal()].sum() / 1e9 / count;
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    // Returns the cache of parsed and compiled expressions
+    public ExpressionCache getExpressionCache() {
+        return expressionCache;
+    }
+
+    // Returns the cache of computation results, or null if it is disabled
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    // Returns the coordinator sharding the computations on the workers, or null if the server computes them
+    public Coordinator getCoordinator() {
+        return coordinator;
+    }
+
+    // Returns the datasets loaded by the clients
+    public DatasetRegistry getDatasets() {
+        return datasets;
+    }
+
+    // Returns the pool of buffers used by the binary protocol
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    // Returns the admission control of computation requests
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    // Returns the processor shared by all connections
+    public RequestProcessor getRequestProcessor() {
+        return requestProcessor;
+    }
+
+    // Returns the scheduler running the requests read by the connections
+    public FairScheduler getScheduler() {
+        return scheduler;
     }
 
-    // Returns the maximum response time
-    public synchronized double getMaxResponseTime() {
-        return maxResponseTime;
+    public ServerConfig getConfig() {
+        return config;
     }
 }
 
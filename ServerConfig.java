@@ -0,0 +1,337 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ServerConfig class holds the options of the server that can be set at startup.
+ * Options are given after the port as "--name=value" arguments; options that are not given keep
+ * their default value.
+ */
+public class ServerConfig {
+
+    // How connections are served
+    public enum Mode {
+        POOL,    // One pool thread per connection, blocking I/O
+        NIO,     // Non-blocking I/O threads multiplexing all connections
+        VIRTUAL  // One virtual thread per connection, blocking I/O, requests processed on the compute threads
+    }
+
+    // What the server does with computation requests
+    public enum Role {
+        SERVER,     // Computes them
+        COORDINATOR // Splits them into shards computed by the workers (see Coordinator)
+    }
+
+    private final int port;
+    private Mode mode = Mode.POOL;
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 4); // I/O threads in NIO mode
+    private int pipelineWindow = 32; // Requests of a connection processed concurrently, 1 disables pipelining
+    private long resultCacheBytes = 0;         // Memory bound of the result cache, 0 disables it
+    private long resultCacheTtlMillis = 10_000; // Time a cached result stays valid
+    private int jitThreshold = ExpressionCache.DEFAULT_JIT_THRESHOLD; // Uses before compiling expressions to bytecode, 0 disables it
+    private long maxRequestCost = 100_000_000_000L;  // Budget of a request, in tuples times expression nodes
+    private long maxInFlightCost = 400_000_000_000L; // Budget of all the requests being computed
+    private AdmissionController.Policy admissionPolicy = AdmissionController.Policy.QUEUE; // Requests over the global budget
+    private long admissionTimeoutMillis = 10_000;     // Time a request can wait in the queue
+    private long fairQuantum = 10_000_000; // Cost a connection can run in each turn of the scheduler
+    private long fastLaneCost = 100_000;   // Largest cost of the requests run in the fast lane
+    private long requestTimeoutMillis = 0; // Time a request has to complete without a deadline of its own, 0 for none
+    private double approxError = 0.001;        // Relative error bound at which AAVG stops sampling
+    private long approxMaxSamples = 1_000_000; // Maximum number of tuples sampled by AAVG
+    private Role role = Role.SERVER;
+    private List<String> workers = new ArrayList<>(); // Addresses of the workers of a coordinator, as "host:port"
+    private int shardsPerWorker = 4;          // Shards of a request sent to each worker
+    private int shardRetries = 2;             // Times a failed shard is sent to another worker
+    private long workerTimeoutMillis = 60_000; // Time a worker has to answer a shard, 0 for no limit
+    private Path datasetDir = null; // Directory of the files that can be loaded as datasets, null disables them
+
+    public ServerConfig(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Parses the command line arguments of the server.
+     *
+     * @param args The arguments: the port followed by the options.
+     * @return The configuration.
+     * @throws IllegalArgumentException If the port or an option is invalid.
+     */
+    public static ServerConfig parse(String[] args) {
+        int port;
+        try {
+            port = Integer.parseInt(args[0]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port number. Please provide a valid integer.");
+        }
+
+        ServerConfig config = new ServerConfig(port);
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            }
+            config.set(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        if (config.role == Role.COORDINATOR && config.workers.isEmpty()) {
+            throw new IllegalArgumentException("Option --workers is required with --role=coordinator");
+        }
+        return config;
+    }
+
+    // Sets a single option from its textual value
+    private void set(String name, String value) {
+        switch (name) {
+            case "mode":
+                mode = parseMode(name, value);
+                break;
+            case "io-threads":
+                ioThreads = (int) parsePositive(name, value);
+                break;
+            case "pipeline-window":
+                pipelineWindow = (int) parsePositive(name, value);
+                break;
+            case "result-cache-bytes":
+                resultCacheBytes = parseLong(name, value);
+                break;
+            case "result-cache-ttl":
+                resultCacheTtlMillis = parsePositiveLong(name, value);
+                break;
+            case "jit-threshold":
+                jitThreshold = (int) parseNonNegative(name, value);
+                break;
+            case "max-request-cost":
+                maxRequestCost = parsePositiveLong(name, value);
+                break;
+            case "max-inflight-cost":
+                maxInFlightCost = parsePositiveLong(name, value);
+                break;
+            case "admission":
+                admissionPolicy = parsePolicy(name, value);
+                break;
+            case "admission-timeout":
+                admissionTimeoutMillis = parseNonNegative(name, value);
+                break;
+            case "fair-quantum":
+                fairQuantum = parsePositiveLong(name, value);
+                break;
+            case "fast-lane-cost":
+                fastLaneCost = parseNonNegative(name, value);
+                break;
+            case "request-timeout":
+                requestTimeoutMillis = parseNonNegative(name, value);
+                break;
+            case "approx-error":
+                approxError = parsePositiveDouble(name, value);
+                break;
+            case "approx-max-samples":
+                approxMaxSamples = parsePositiveLong(name, value);
+                break;
+            case "role":
+                role = parseRole(name, value);
+                break;
+            case "workers":
+                workers = parseWorkers(name, value);
+                break;
+            case "shards-per-worker":
+                shardsPerWorker = (int) parsePositive(name, value);
+                break;
+            case "shard-retries":
+                shardRetries = (int) parseNonNegative(name, value);
+                break;
+            case "worker-timeout":
+                workerTimeoutMillis = parseNonNegative(name, value);
+                break;
+            case "dataset-dir":
+                datasetDir = parseDirectory(name, value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: --" + name);
+        }
+    }
+
+    private static long parseLong(String name, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for option --" + name + ": " + value);
+        }
+    }
+
+    private static long parsePositive(String name, String value) {
+        long number = parseLong(name, value);
+        if (number <= 0 || number > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Option --" + name + " must be greater than 0");
+        }
+        return number;
+    }
+
+    private static long parseNonNegative(String name, String value) {
+        long number = parseLong(name, value);
+        if (number < 0 || number > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Option --" + name + " cannot be negative");
+        }
+        return number;
+    }
+
+    private static long parsePositiveLong(String name, String value) {
+        long number = parseLong(name, value);
+        if (number <= 0) {
+            throw new IllegalArgumentException("Option --" + name + " must be greater than 0");
+        }
+        return number;
+    }
+
+    private static double parsePositiveDouble(String name, String value) {
+        double number;
+        try {
+            number = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for option --" + name + ": " + value);
+        }
+        if (!(number > 0) || Double.isInfinite(number)) {
+            throw new IllegalArgumentException("Option --" + name + " must be greater than 0");
+        }
+        return number;
+    }
+
+    private static AdmissionController.Policy parsePolicy(String name, String value) {
+        try {
+            return AdmissionController.Policy.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for option --" + name + ": " + value);
+        }
+    }
+
+    private static Role parseRole(String name, String value) {
+        try {
+            return Role.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for option --" + name + ": " + value);
+        }
+    }
+
+    // Parses a list of "host:port" addresses separated by commas
+    private static List<String> parseWorkers(String name, String value) {
+        List<String> addresses = new ArrayList<>();
+        for (String address : value.split(",")) {
+            int separator = address.lastIndexOf(':');
+            try {
+                int port = Integer.parseInt(address.substring(separator + 1));
+                if (separator <= 0 || port <= 0 || port > 65535) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value for option --" + name + ": " + address);
+            }
+            addresses.add(address);
+        }
+        return addresses;
+    }
+
+    private static Path parseDirectory(String name, String value) {
+        Path directory = Paths.get(value).toAbsolutePath().normalize();
+        if (!Files.isDirectory(directory)) {
+            throw new IllegalArgumentException("Option --" + name + " must be a directory: " + value);
+        }
+        return directory;
+    }
+
+    private static Mode parseMode(String name, String value) {
+        try {
+            return Mode.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for option --" + name + ": " + value);
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public int getPipelineWindow() {
+        return pipelineWindow;
+    }
+
+    public long getResultCacheBytes() {
+        return resultCacheBytes;
+    }
+
+    public long getResultCacheTtlMillis() {
+        return resultCacheTtlMillis;
+    }
+
+    public int getJitThreshold() {
+        return jitThreshold;
+    }
+
+    public long getMaxRequestCost() {
+        return maxRequestCost;
+    }
+
+    public long getMaxInFlightCost() {
+        return maxInFlightCost;
+    }
+
+    public AdmissionController.Policy getAdmissionPolicy() {
+        return admissionPolicy;
+    }
+
+    public long getAdmissionTimeoutMillis() {
+        return admissionTimeoutMillis;
+    }
+
+    public long getFairQuantum() {
+        return fairQuantum;
+    }
+
+    public long getFastLaneCost() {
+        return fastLaneCost;
+    }
+
+    public long getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    public double getApproxError() {
+        return approxError;
+    }
+
+    public long getApproxMaxSamples() {
+        return approxMaxSamples;
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public List<String> getWorkers() {
+        return workers;
+    }
+
+    public int getShardsPerWorker() {
+        return shardsPerWorker;
+    }
+
+    public int getShardRetries() {
+        return shardRetries;
+    }
+
+    public long getWorkerTimeoutMillis() {
+        return workerTimeoutMillis;
+    }
+
+    public Path getDatasetDir() {
+        return datasetDir;
+    }
+}
@@ -1,7 +1,3 @@
-import it.units.project.expression.Variable;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -10,65 +6,46 @@ import java.util.Map;
  *
  * In "GRID" mode, the Cartesian product of all possible variable values is constructed.
  * In "LIST" mode, the values of the variables are combined element by element.
+ *
+ * The tuples are not materialized: the returned {@link TupleSpace} streams them through a cursor,
+ * so the memory used by a request only depends on the number of variables.
  */
 public class TupleManager {
 
     // Builds value tuples based on the type (GRID or LIST)
-    public static List<Map<Variable, Double>> buildValueTuples(Map<String, double[]> variableMap, String valuesKind) throws Exception {
-        List<Map<Variable, Double>> tuples = new ArrayList<>();
-        List<String> variableNames = new ArrayList<>(variableMap.keySet());
-        List<double[]> variableValues = new ArrayList<>(variableMap.values());
+    public static TupleSpace buildValueTuples(Map<String, Column> variableMap, String valuesKind) throws Exception {
+        String[] variableNames = variableMap.keySet().toArray(new String[0]);
+        Column[] variableValues = variableMap.values().toArray(new Column[0]);
 
         if ("GRID".equalsIgnoreCase(valuesKind)) {
             // Builds the Cartesian product of the variables
-            buildGridTuples(variableNames, variableValues, 0, new HashMap<>(), tuples);
+            return buildGridTuples(variableNames, variableValues);
         } else if ("LIST".equalsIgnoreCase(valuesKind)) {
             // Builds the union of variables element by element
-            buildListTuples(variableNames, variableValues, tuples);
+            return buildListTuples(variableNames, variableValues);
         } else {
             throw new Exception("Unsupported ValuesKind type: " + valuesKind);
         }
-
-        return tuples;
     }
 
     // Building tuples using the Cartesian product
-    private static void buildGridTuples(List<String> variableNames, List<double[]> variableValues, int index, Map<Variable, Double> currentTuple, List<Map<Variable, Double>> resultTuples) {
-        if (index == variableNames.size()) {
-            resultTuples.add(new HashMap<>(currentTuple));
-            return;
-        }
-
-        // Get the variable name and its possible values
-        String variableName = variableNames.get(index);
-        double[] values = variableValues.get(index);
-        Variable variable = new Variable(variableName);
-
-        for (double value : values) {
-            currentTuple.put(variable, value);
-            // Recursively call the method to consider the next variable
-            buildGridTuples(variableNames, variableValues, index + 1, currentTuple, resultTuples);
+    private static TupleSpace buildGridTuples(String[] variableNames, Column[] variableValues) throws Exception {
+        try {
+            return new TupleSpace(variableNames, variableValues, true);
+        } catch (ArithmeticException e) {
+            throw new Exception("Too many tuples in the Cartesian product");
         }
     }
 
     // Building tuples element by element (LIST)
-    private static void buildListTuples(List<String> variableNames, List<double[]> variableValues, List<Map<Variable, Double>> resultTuples) throws Exception {
+    private static TupleSpace buildListTuples(String[] variableNames, Column[] variableValues) throws Exception {
         // Check that all variables have the same number of values
-        int listLength = variableValues.get(0).length;
-        for (double[] values : variableValues) {
-            if (values.length != listLength) {
+        int listLength = variableValues[0].size();
+        for (Column values : variableValues) {
+            if (values.size() != listLength) {
                 throw new Exception("Lists do not have the same length");
             }
         }
-        // Build the tuples for each element in the lists
-        for (int i = 0; i < listLength; i++) {
-            Map<Variable, Double> tuple = new HashMap<>();
-            for (int j = 0; j < variableNames.size(); j++) {
-                Variable variable = new Variable(variableNames.get(j));
-                double[] values = variableValues.get(j);
-                tuple.put(variable, values[i]);
-            }
-            resultTuples.add(tuple);
-        }
+        return new TupleSpace(variableNames, variableValues, false);
     }
 }
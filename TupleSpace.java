@@ -0,0 +1,295 @@
+/**
+ * The TupleSpace class describes all the value tuples of a request without materializing them.
+ * In "GRID" mode the tuples are the Cartesian product of the variable values (the last variable
+ * changes fastest), in "LIST" mode they are the values combined element by element.
+ *
+ * Tuples are read through a {@link Cursor}, which writes the values of the current tuple into a
+ * primitive buffer supplied by the caller, so iterating the space allocates nothing. The values of
+ * the variables are read from {@link Column}s, which need not be stored in memory.
+ */
+public class TupleSpace {
+
+    private final String[] variableNames; // Names of the variables, in slot order
+    private final Column[] values;        // Possible values of each variable
+    private final boolean grid;           // True for the Cartesian product, false for element-by-element
+    private final long size;              // Number of tuples
+
+    TupleSpace(String[] variableNames, Column[] values, boolean grid) {
+        this.variableNames = variableNames;
+        this.values = values;
+        this.grid = grid;
+        if (grid) {
+            long product = 1;
+            for (Column variableValues : values) {
+                product = Math.multiplyExact(product, (long) variableValues.size());
+            }
+            this.size = product;
+        } else {
+            this.size = values.length == 0 ? 0 : values[0].size();
+        }
+    }
+
+    // Returns the names of the variables; the value of variable i is written at position i
+    public String[] getVariableNames() {
+        return variableNames;
+    }
+
+    // Returns the number of variables of each tuple
+    public int getVariableCount() {
+        return variableNames.length;
+    }
+
+    // Returns the number of tuples in the space
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public boolean isGrid() {
+        return grid;
+    }
+
+    // Returns the number of values of a variable
+    public int getValueCount(int variable) {
+        return values[variable].size();
+    }
+
+    // Returns the value of a variable with the given index
+    public double getValue(int variable, int index) {
+        return values[variable].get(index);
+    }
+
+    /**
+     * Writes the values of the tuple with the given index into target[0..variableCount), without
+     * iterating over the tuples before it. Tuples are indexed in iteration order (see {@link #cursor()}).
+     *
+     * @param index  The index of the tuple.
+     * @param target The buffer receiving the values.
+     */
+    public void readTuple(long index, double[] target) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Invalid tuple index " + index);
+        }
+        if (!grid) {
+            for (int i = 0; i < values.length; i++) {
+                target[i] = values[i].get((int) index);
+            }
+            return;
+        }
+        // Decodes the index into mixed-radix digits, the last variable being the fastest-moving one
+        for (int i = values.length - 1; i >= 0; i--) {
+            int radix = values[i].size();
+            target[i] = values[i].get((int) (index % radix));
+            index /= radix;
+        }
+    }
+
+    // Returns whether the values of each variable may include -0.0 (see Column.mayBeNegativeZero())
+    public boolean[] getNegativeZeroSlots() {
+        boolean[] slots = new boolean[values.length];
+        for (int i = 0; i < values.length; i++) {
+            slots[i] = values[i].mayBeNegativeZero();
+        }
+        return slots;
+    }
+
+    // Returns true if the values of every variable are non-decreasing (see Column.isNonDecreasing())
+    public boolean hasSortedValues() {
+        for (Column column : values) {
+            if (!column.isNonDecreasing()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the sub-grid of a "GRID" space made of the tuples whose variable i has index in
+     * [from[i], to[i]). Its tuples have the same values as in this space.
+     *
+     * @param from The index of the first value of each variable.
+     * @param to   The index after the last value of each variable.
+     * @return The sub-grid.
+     */
+    public TupleSpace box(int[] from, int[] to) {
+        Column[] boxValues = new Column[values.length];
+        for (int i = 0; i < values.length; i++) {
+            boxValues[i] = values[i].slice(from[i], to[i] - from[i]);
+        }
+        return new TupleSpace(variableNames, boxValues, true);
+    }
+
+    // Returns a cursor over all the tuples
+    public Cursor cursor() {
+        return cursor(0, size);
+    }
+
+    /**
+     * Returns a cursor over the tuples with index in [from, to).
+     * Tuples are indexed in iteration order, so disjoint ranges can be read independently.
+     */
+    public Cursor cursor(long from, long to) {
+        return cursor(from, to, null);
+    }
+
+    /**
+     * Returns a cursor over the tuples with index in [from, to), visiting the Cartesian product as
+     * nested loops in the given order: loopOrder[0] is the variable of the outermost loop and the
+     * last one changes fastest. The tuples are indexed in this iteration order, and the cursor
+     * returns the loop level, instead of the position, of the first variable written.
+     *
+     * @param from      The index of the first tuple.
+     * @param to        The index after the last tuple.
+     * @param loopOrder The variables from the outermost to the innermost loop, or null for the
+     *                  slot order; ignored in "LIST" mode.
+     * @return The cursor.
+     */
+    public Cursor cursor(long from, long to, int[] loopOrder) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Invalid tuple range [" + from + ", " + to + ")");
+        }
+        return grid ? new GridCursor(from, to, loopOrder) : new ListCursor(from, to);
+    }
+
+    /**
+     * A forward-only reader over a range of tuples.
+     */
+    public abstract static class Cursor {
+        protected long remaining;
+
+        Cursor(long from, long to) {
+            this.remaining = to - from;
+        }
+
+        /**
+         * Moves to the next tuple and writes its values into target[0..variableCount).
+         * Only the values that differ from the previous tuple are written, so the same buffer
+         * must be passed on every call.
+         *
+         * @param target The buffer receiving the values.
+         * @return The position of the first variable whose value was written, or -1 when the
+         * range is exhausted.
+         */
+        public abstract int next(double[] target);
+
+        /**
+         * Reads the next tuples as columns: the value of variable i in the k-th tuple read is written
+         * to columns[i][k].
+         *
+         * @param columns The columns receiving the values, one per variable at least.
+         * @param max     The maximum number of tuples to read.
+         * @return The number of tuples read, 0 when the range is exhausted.
+         */
+        public abstract int nextBlock(double[][] columns, int max);
+
+        // Returns the number of tuples still to be read
+        public long remaining() {
+            return remaining;
+        }
+    }
+
+    // Odometer over the Cartesian product: the variable of the last loop is the fastest-moving digit
+    private class GridCursor extends Cursor {
+        private final Column[] loopValues;     // Values of the variable of each loop level
+        private final int[] slots;             // Variable slot of each loop level
+        private final int[] digits = new int[values.length];
+        private final double[] tuple = new double[values.length]; // Current tuple, for reading blocks
+        private boolean started = false;
+
+        GridCursor(long from, long to, int[] loopOrder) {
+            super(from, to);
+            this.loopValues = new Column[values.length];
+            this.slots = new int[values.length];
+            for (int level = 0; level < values.length; level++) {
+                slots[level] = loopOrder != null ? loopOrder[level] : level;
+                loopValues[level] = values[slots[level]];
+            }
+
+            // Decodes the starting index into mixed-radix digits
+            long index = from;
+            for (int i = values.length - 1; i >= 0 && index > 0; i--) {
+                int radix = loopValues[i].size();
+                digits[i] = (int) (index % radix);
+                index /= radix;
+            }
+        }
+
+        @Override
+        public int next(double[] target) {
+            if (remaining == 0) {
+                return -1;
+            }
+            remaining--;
+
+            if (!started) {
+                started = true;
+                for (int i = 0; i < digits.length; i++) {
+                    target[slots[i]] = loopValues[i].get(digits[i]);
+                }
+                return 0;
+            }
+
+            // Increments the last digit and propagates the carry towards the first one
+            int position = digits.length - 1;
+            while (position > 0 && digits[position] == loopValues[position].size() - 1) {
+                digits[position] = 0;
+                target[slots[position]] = loopValues[position].get(0);
+                position--;
+            }
+            digits[position]++;
+            target[slots[position]] = loopValues[position].get(digits[position]);
+            return position;
+        }
+
+        @Override
+        public int nextBlock(double[][] columns, int max) {
+            int length = 0;
+            while (length < max && next(tuple) >= 0) {
+                for (int i = 0; i < tuple.length; i++) {
+                    columns[i][length] = tuple[i];
+                }
+                length++;
+            }
+            return length;
+        }
+    }
+
+    // Zip over the value lists: every tuple takes the i-th value of each variable
+    private class ListCursor extends Cursor {
+        private int index;
+
+        ListCursor(long from, long to) {
+            super(from, to);
+            this.index = (int) from;
+        }
+
+        @Override
+        public int next(double[] target) {
+            if (remaining == 0) {
+                return -1;
+            }
+            remaining--;
+
+            for (int i = 0; i < values.length; i++) {
+                target[i] = values[i].get(index);
+            }
+            index++;
+            return 0;
+        }
+
+        // The values already are columns, so a block is a copy of a slice of each of them
+        @Override
+        public int nextBlock(double[][] columns, int max) {
+            int length = (int) Math.min(max, remaining);
+            for (int i = 0; i < values.length; i++) {
+                values[i].copyTo(index, columns[i], 0, length);
+            }
+            index += length;
+            remaining -= length;
+            return length;
+        }
+    }
+}
@@ -3,17 +3,44 @@ import java.util.Map;
 
 /**
  * The VariableParser class handles converting a string of variables into a map of variables with their values.
+ * The values are returned as {@link RangeColumn}s, which compute each value when it is read, so parsing
+ * a request allocates nothing proportional to the number of values and its cost can be checked first.
+ * A variable can also take the values of a column of a dataset, with the definition "name:@dataset.column".
  */
 public class VariableParser {
 
     // Converts the string of variables into a map of variables with their values
-    public static Map<String, double[]> parseVariableValues(String variableValuesFunction) throws Exception {
+    public static Map<String, Column> parseVariableValues(String variableValuesFunction) throws Exception {
+        return parseVariableValues(variableValuesFunction, null);
+    }
+
+    /**
+     * Converts the string of variables into a map of variables with their values.
+     *
+     * @param variableValuesFunction The variables, as "name:start:step:end" or "name:@dataset.column"
+     *                               definitions separated by commas.
+     * @param datasets               The datasets the columns are taken from, or null if there are none.
+     * @return The values of each variable.
+     * @throws Exception If a definition is invalid, or refers to an unknown dataset column.
+     */
+    public static Map<String, Column> parseVariableValues(String variableValuesFunction,
+                                                          DatasetRegistry datasets) throws Exception {
         String[] variableParts = variableValuesFunction.split(",");
-        Map<String, double[]> variableMap = new HashMap<>();
+        Map<String, Column> variableMap = new HashMap<>();
 
         for (String part : variableParts) {
             String[] details = part.split(":");
 
+            // A column of a dataset, read where it is stored
+            if (details.length == 2 && details[1].trim().startsWith("@")) {
+                String reference = details[1].trim().substring(1);
+                if (datasets == null) {
+                    throw new Exception("Unknown dataset column: " + reference);
+                }
+                variableMap.put(details[0], datasets.getColumn(reference));
+                continue;
+            }
+
             // Check that the format is correct (must have exactly 4 parts)
             if (details.length != 4) {
                 throw new Exception("Invalid variable format: " + part);
@@ -24,15 +51,7 @@ public class VariableParser {
                 double start = Double.parseDouble(details[1]);
                 double step = Double.parseDouble(details[2]);
                 double end = Double.parseDouble(details[3]);
-
-                // Ensure that step is greater than 0
-                if (step <= 0) {
-                    throw new Exception("Step must be greater than 0 for variable: " + variableName);
-                }
-
-                // Generate the sequence of values for the variable
-                double[] values = generateValues(start, step, end);
-                variableMap.put(variableName, values);
+                variableMap.put(variableName, parseRange(variableName, start, step, end));
 
             } catch (NumberFormatException e) {
                 throw new Exception("Invalid numeric value for variable: " + details[0]);
@@ -42,13 +61,37 @@ public class VariableParser {
         return variableMap;
     }
 
+    /**
+     * Generates the values of a variable from its range, already split into numbers
+     * (used by the binary protocol, which sends the numbers in binary form).
+     *
+     * @param variableName The name of the variable, used in the error message.
+     * @param start The first value.
+     * @param step The distance between consecutive values.
+     * @param end The last value, included if it is reached by the steps.
+     * @return The values of the variable.
+     * @throws Exception If the step is not greater than 0, or the range has a negative or too large
+     * number of values.
+     */
+    public static Column parseRange(String variableName, double start, double step, double end) throws Exception {
+        // Ensure that step is greater than 0
+        if (step <= 0) {
+            throw new Exception("Step must be greater than 0 for variable: " + variableName);
+        }
+
+        // Generate the sequence of values for the variable
+        return generateValues(variableName, start, step, end);
+    }
+
     // Generates a sequence of values from start to end with the given step
-    private static double[] generateValues(double start, double step, double end) {
-        int size = (int) Math.ceil((end - start) / step) + 1;
-        double[] values = new double[size];
-        for (int i = 0; i < size; i++) {
-            values[i] = start + i * step;
+    private static Column generateValues(String variableName, double start, double step, double end) throws Exception {
+        double steps = Math.ceil((end - start) / step);
+        if (steps >= Integer.MAX_VALUE) {
+            throw new Exception("Too many values for variable: " + variableName);
+        }
+        if (steps < -1) {
+            throw new Exception("End is before start for variable: " + variableName);
         }
-        return values;
+        return new RangeColumn(start, step, (int) steps + 1);
     }
 }
@@ -34,21 +34,73 @@ public class Parser {
     CLOSED_BRACKET("\\)");           // Parentesi chiusa
 
     private final String regex;      // L'espressione regolare associata a ciascun token
+    private final Pattern pattern;   // Il pattern compilato, condiviso in sola lettura da tutti i thread
 
     // Costruttore dell'enum: associa un pattern regex a ciascun tipo di token
     TokenType(String regex) {
       this.regex = regex;
+      this.pattern = Pattern.compile(regex);  // Compila la regex una sola volta
     }
 
     // Metodo che cerca il prossimo token di questo tipo nella stringa
     public Token next(String s, int i) {
-      Matcher matcher = Pattern.compile(regex).matcher(s);  // Crea un matcher usando la regex del token
+      Matcher matcher = pattern.matcher(s);  // Crea un matcher usando la regex del token
       if (!matcher.find(i)) {  // Se il matcher non trova un match, restituisce null
         return null;
       }
       return new Token(matcher.start(), matcher.end());  // Restituisce il token con posizione di inizio e fine
     }
 
+    // Metodo che riconosce un token di questo tipo che inizia esattamente alla posizione i,
+    // scorrendo i caratteri senza usare le regex. Restituisce la fine del token, oppure -1
+    public int match(String s, int i) {
+      int length = s.length();
+      if (i >= length) {
+        return -1;
+      }
+      char c = s.charAt(i);
+      switch (this) {
+        case CONSTANT:
+          if (!isDigit(c)) {
+            return -1;
+          }
+          int end = skipDigits(s, i + 1);
+          // La parte decimale è accettata solo se il punto è seguito da almeno una cifra
+          if (end + 1 < length && s.charAt(end) == '.' && isDigit(s.charAt(end + 1))) {
+            end = skipDigits(s, end + 2);
+          }
+          return end;
+        case VARIABLE:
+          if (c < 'a' || c > 'z') {
+            return -1;
+          }
+          int j = i + 1;
+          while (j < length && ((s.charAt(j) >= 'a' && s.charAt(j) <= 'z') || isDigit(s.charAt(j)))) {
+            j++;
+          }
+          return j;
+        case OPERATOR:
+          return c == '+' || c == '-' || c == '*' || c == '/' || c == '^' ? i + 1 : -1;
+        case OPEN_BRACKET:
+          return c == '(' ? i + 1 : -1;
+        case CLOSED_BRACKET:
+          return c == ')' ? i + 1 : -1;
+        default:
+          return -1;
+      }
+    }
+
+    private static boolean isDigit(char c) {
+      return c >= '0' && c <= '9';
+    }
+
+    private static int skipDigits(String s, int i) {
+      while (i < s.length() && isDigit(s.charAt(i))) {
+        i++;
+      }
+      return i;
+    }
+
     public String getRegex() {
       return regex;  // Restituisce la regex associata al token
     }
@@ -65,36 +117,41 @@ public class Parser {
     }
   }
 
-  // Metodo principale del parser che analizza la stringa e costruisce l'albero sintattico (AST)
+  // Metodo principale del parser che analizza la stringa e costruisce l'albero sintattico (AST).
+  // Il riconoscimento dei token avviene carattere per carattere a partire dal cursore,
+  // quindi l'analisi è lineare nella lunghezza della stringa
   public Node parse() throws IllegalArgumentException {
-    Token token;
+    int end;
 
     // Prova a trovare una costante
-    token = TokenType.CONSTANT.next(string, cursor);
-    if (token != null && token.start == cursor) {  // Se trova una costante
-      cursor = token.end;  // Sposta il cursore dopo la costante
-      return new Constant(Double.parseDouble(string.substring(token.start, token.end)));  // Crea un nodo Constant
+    end = TokenType.CONSTANT.match(string, cursor);
+    if (end >= 0) {  // Se trova una costante
+      int start = cursor;
+      cursor = end;  // Sposta il cursore dopo la costante
+      return new Constant(Double.parseDouble(string.substring(start, end)));  // Crea un nodo Constant
     }
 
     // Prova a trovare una variabile
-    token = TokenType.VARIABLE.next(string, cursor);
-    if (token != null && token.start == cursor) {  // Se trova una variabile
-      cursor = token.end;  // Sposta il cursore dopo la variabile
-      return new Variable(string.substring(token.start, token.end));  // Crea un nodo Variable
+    end = TokenType.VARIABLE.match(string, cursor);
+    if (end >= 0) {  // Se trova una variabile
+      int start = cursor;
+      cursor = end;  // Sposta il cursore dopo la variabile
+      return new Variable(string.substring(start, end));  // Crea un nodo Variable
     }
 
     // Prova a trovare una parentesi aperta
-    token = TokenType.OPEN_BRACKET.next(string, cursor);
-    if (token != null && token.start == cursor) {  // Se trova una parentesi aperta
-      cursor = token.end;  // Sposta il cursore dopo la parentesi
+    end = TokenType.OPEN_BRACKET.match(string, cursor);
+    if (end >= 0) {  // Se trova una parentesi aperta
+      cursor = end;  // Sposta il cursore dopo la parentesi
 
       // Analizza il primo sottoalbero (prima espressione)
       Node child1 = parse();
 
       // Cerca l'operatore
-      Token operatorToken = TokenType.OPERATOR.next(string, cursor);
-      if (operatorToken != null && operatorToken.start == cursor) {  // Se trova l'operatore
-        cursor = operatorToken.end;  // Sposta il cursore dopo l'operatore
+      int operatorStart = cursor;
+      end = TokenType.OPERATOR.match(string, cursor);
+      if (end >= 0) {  // Se trova l'operatore
+        cursor = end;  // Sposta il cursore dopo l'operatore
       } else {
         // Se non trova un operatore, lancia un'eccezione
         throw new IllegalArgumentException(String.format(
@@ -108,9 +165,9 @@ public class Parser {
       Node child2 = parse();
 
       // Cerca una parentesi chiusa
-      Token closedBracketToken = TokenType.CLOSED_BRACKET.next(string, cursor);
-      if (closedBracketToken != null && closedBracketToken.start == cursor) {  // Se trova la parentesi chiusa
-        cursor = closedBracketToken.end;  // Sposta il cursore dopo la parentesi chiusa
+      end = TokenType.CLOSED_BRACKET.match(string, cursor);
+      if (end >= 0) {  // Se trova la parentesi chiusa
+        cursor = end;  // Sposta il cursore dopo la parentesi chiusa
       } else {
         // Se non trova una parentesi chiusa, lancia un'eccezione
         throw new IllegalArgumentException(String.format(
@@ -122,9 +179,9 @@ public class Parser {
 
       // Identifica il tipo di operatore
       Operator.Type operatorType = null;
-      String operatorString = string.substring(operatorToken.start, operatorToken.end);
+      char operatorSymbol = string.charAt(operatorStart);
       for (Operator.Type type : Operator.Type.values()) {  // Scorre tutti i tipi di operatori
-        if (operatorString.equals(Character.toString(type.getSymbol()))) {  // Se trova un match con il simbolo
+        if (operatorSymbol == type.getSymbol()) {  // Se trova un match con il simbolo
           operatorType = type;
           break;
         }
@@ -134,8 +191,8 @@ public class Parser {
         // Se non riconosce l'operatore, lancia un'eccezione
         throw new IllegalArgumentException(String.format(
                 "Unknown operator at %d: '%s'",
-                operatorToken.start,
-                operatorString
+                operatorStart,
+                operatorSymbol
         ));
       }
 